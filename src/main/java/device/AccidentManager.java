@@ -1,83 +1,95 @@
 package main.java.device;
 
+import main.java.device.runtime.Deduplicator;
+import main.java.device.runtime.TimingWheel;
 import main.java.device.vehicle.SpecialVehicle;
 import main.java.utils.*;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.json.JSONObject;
+import main.java.utils.messages.AccidentEvent;
+import main.java.utils.messages.MessageType;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 // TODO: Add AWS IoT Functionality
 public class AccidentManager extends Device {
     private final String awsEndpoint;
     private final String certificateFile;
     private final String privateKeyFile;
-    private final List<Accident> accidents = new LinkedList<>();
+    private final Map<String, Accident> accidents = new HashMap<>();
+    private final Map<String, TimingWheel.Timeout> accidentChecks = new HashMap<>();
+    // An alert is received both from the broker and from AWS, it is acted on with whichever copy arrives first
+    private final Deduplicator alerts = new Deduplicator();
 
     public AccidentManager(String id, String awsEndpoint, String certificateFile, String privateKeyFile) {
         super(id);
         this.awsEndpoint = awsEndpoint;
         this.certificateFile = certificateFile;
         this.privateKeyFile = privateKeyFile;
+        this.alerts.check("ACCIDENT");
     }
 
     @Override
     public void init() throws MqttException {
         this.mqttConnect(GlobalVars.BROKER_ADDRESS);
-        this.connection.subscribe(GlobalVars.BASE_TOPIC + "/step");
         this.connection.subscribe(GlobalVars.BASE_TOPIC + "/road/+/alerts");
 
         this.awsConnect(awsEndpoint, certificateFile, privateKeyFile);
         this.awsConnection.subscribe("road/+/alerts");
 
-        new Thread(this).start();
+        this.start();
     }
 
 
     @Override
     protected void handleMessage(MQTTMessage message) {
         Message payload = message.getPayload();
-        // Ignore messages from AWS IoT
-        if(!message.getTopic().startsWith("es")) {
+        if(payload.getMessageType() == MessageType.TIMER) {
+            // Each open accident has its own periodic timer, named after the accident
+            checkAccident(payload.getMsg().getString("name"));
             return;
         }
-        if(payload.getType().equals("ACCIDENT")) {
-            JSONObject msg = payload.getMsg();
-            if(msg.getString("event").equals("OPEN")) {
-                accidents.add(new Accident(msg.getString("id"), msg.getString("vehicle"), msg.getString("road-segment"), msg.getInt("position")));
-                Logger.info(this.getId(), "Accident reported on segment " + msg.getString("road-segment") + " at position " + msg.getInt("position"));
+        if(payload.getMessageType() == MessageType.ACCIDENT) {
+            if(this.alerts.isDuplicate(payload)) return;
+            AccidentEvent event = payload.getTyped();
+            if(event.event() == AccidentEvent.Event.OPEN) {
+                Accident accident = new Accident(event.id(), event.vehicle(), event.segment(), event.position());
+                accidents.put(accident.getId(), accident);
+                accidentChecks.put(accident.getId(), scheduleAtFixedRate(GlobalVars.STEP_MS, GlobalVars.STEP_MS, accident.getId()));
+                Logger.info(this.getId(), "Accident reported on segment " + event.segment() + " at position " + event.position());
                 Logger.info(this.getId(), "Sending police car and ambulance to the accident location");
             }
-        } else if(payload.getType().equals("SIMULATOR_STEP")) {
-            // Check if the accidents are still active
-            checkAccidents();
         }
     }
 
-    private void checkAccidents() {
-        for(Accident accident : accidents) {
-            SpecialVehicle policeCar = accident.getPoliceCar();
-            SpecialVehicle ambulance = accident.getAmbulance();
+    /**
+     * Checks if the police car and the ambulance have reached the accident, if so the accident is closed
+     * @param accidentId the id of the accident to be checked
+     */
+    private void checkAccident(String accidentId) {
+        Accident accident = accidents.get(accidentId);
+        if(accident == null) return;
+        SpecialVehicle policeCar = accident.getPoliceCar();
+        SpecialVehicle ambulance = accident.getAmbulance();
 
-            // Check if the police car and ambulance have reached the accident location
-            if(policeCar.reachedDestination() && ambulance.reachedDestination()) {
-                Message message = Message.createAccident(accident.getId(), "CLOSE", accident.getVehicle(), accident.getSegment(), accident.getPosition());
-                try {
-                    this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + accident.getSegment() + "/alerts", message.toJson());
-                } catch (MqttException e) {
-                    throw new RuntimeException(e);
-                }
+        // Check if the police car and ambulance have reached the accident location
+        if(policeCar.reachedDestination() && ambulance.reachedDestination()) {
+            Message message = Message.createAccident(accident.getId(), "CLOSE", accident.getVehicle(), accident.getSegment(), accident.getPosition());
+            try {
+                this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + accident.getSegment() + "/alerts", message);
+            } catch (MqttException e) {
+                throw new RuntimeException(e);
+            }
 
-                // Stop the vehicles
-                policeCar.exitRoad();
-                policeCar.stop();
-                ambulance.exitRoad();
-                ambulance.stop();
+            // Stop the vehicles
+            policeCar.exitRoad();
+            policeCar.stop();
+            ambulance.exitRoad();
+            ambulance.stop();
 
-                accidents.remove(accident);
-                Logger.info(this.getId(), "Accident " + accident.getId() + " has been resolved");
-            }
+            accidents.remove(accidentId);
+            accidentChecks.remove(accidentId).cancel();
+            Logger.info(this.getId(), "Accident " + accident.getId() + " has been resolved");
         }
     }
 }
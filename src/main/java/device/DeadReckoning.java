@@ -0,0 +1,131 @@
+package main.java.device;
+
+import main.java.utils.messages.TrafficEvent;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static main.java.utils.GlobalVars.STEP_MS;
+
+/**
+ * This class implements the dead reckoning of the vehicle positions.
+ * With dead reckoning a vehicle does not publish its position at every step but only when a receiver could not predict
+ * it: when it enters or leaves a segment, when its speed changes, when its actual position drifts from the one
+ * extrapolated from its last report by more than a threshold, and at least every few steps. Reports carry the speed and
+ * the simulation time of the position (the step times the step duration, since the simulation does not run at wall
+ * clock speed), and receivers extrapolate the positions with the same formula as the navigator, so the error of an
+ * extrapolated position is bounded by the threshold.
+ * An instance tracks the last report of every vehicle, es. the special vehicles in the segment of an info panel.
+ * It is enabled with the system property "smartcity.traffic.deadReckoning", the drift threshold in meters is set with
+ * "smartcity.traffic.drift" and the maximum number of steps between two reports with "smartcity.traffic.heartbeat"
+ */
+public class DeadReckoning {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.traffic.deadReckoning");
+    private static final int driftThreshold = Integer.getInteger("smartcity.traffic.drift", 25);
+    private static final int heartbeatSteps = Integer.getInteger("smartcity.traffic.heartbeat", 20);
+
+    private final Map<String, TrafficEvent> vehicles = new LinkedHashMap<>();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables dead reckoning for the vehicles, from their next step
+     * @param enable true to publish the positions only when they can not be extrapolated
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * @return the maximum time in milliseconds of simulation between two reports of a vehicle
+     */
+    public static long getHeartbeatMs() {
+        return (long) heartbeatSteps * STEP_MS;
+    }
+
+    /**
+     * @param step the step counter of the simulator
+     * @return the simulation time of the step in milliseconds
+     */
+    public static long simTime(int step) {
+        return (long) step * STEP_MS;
+    }
+
+    /**
+     * Computes the distance travelled at a speed, rounded like the navigator does
+     * @param speed the speed in km/h
+     * @param milliseconds the time in milliseconds
+     * @return the distance in meters
+     */
+    public static int distance(int speed, long milliseconds) {
+        return (int) (milliseconds * speed * 0.0002778);
+    }
+
+    /**
+     * Extrapolates the position of a vehicle from its last report
+     * @param event the last report of the vehicle
+     * @param simTime the simulation time in milliseconds, es. simTime(step)
+     * @return the extrapolated position in the segment of the report, the reported one if it can not be extrapolated
+     */
+    public static int extrapolate(TrafficEvent event, long simTime) {
+        if (!event.hasMotion() || event.action() != TrafficEvent.Action.VEHICLE_IN || simTime <= event.simTime()) return event.position();
+        long elapsed = simTime - event.simTime();
+        // Whole steps are rounded one at a time, like the navigator of a vehicle moving step by step. A vehicle catching
+        // up with several steps moves them at once and travels a little further, a drift bounded like any other
+        return event.position() + (int) (elapsed / STEP_MS) * distance(event.speed(), STEP_MS) + distance(event.speed(), elapsed % STEP_MS);
+    }
+
+    /**
+     * Tells a vehicle if a new position has to be reported or if the receivers can extrapolate it from the last report
+     * @param last the last report of the vehicle, null if none
+     * @param next the new position, with its speed and simulation time
+     * @return true if the new position has to be published
+     */
+    public static boolean needsReport(TrafficEvent last, TrafficEvent next) {
+        if (last == null || !next.hasMotion() || !last.hasMotion()) return true;
+        if (last.action() != next.action() || !last.segment().equals(next.segment()) || last.speed() != next.speed()) return true;
+        if (next.simTime() - last.simTime() >= getHeartbeatMs()) return true;
+        return Math.abs(next.position() - extrapolate(last, next.simTime())) > driftThreshold;
+    }
+
+    /**
+     * Records the report of a vehicle, forgetting the vehicle when it leaves the segment
+     * @param event the report
+     */
+    public void update(TrafficEvent event) {
+        if (event.action() == TrafficEvent.Action.VEHICLE_OUT) this.vehicles.remove(event.vehicleId());
+        else this.vehicles.put(event.vehicleId(), event);
+    }
+
+    /**
+     * Forgets the vehicles that did not report for longer than two heartbeats, es. because they disconnected
+     * @param simTime the simulation time in milliseconds
+     */
+    public void expire(long simTime) {
+        this.vehicles.values().removeIf(event -> event.hasMotion() && simTime - event.simTime() > 2 * getHeartbeatMs());
+    }
+
+    /**
+     * @param vehicleId the id of the vehicle
+     * @param simTime the simulation time in milliseconds
+     * @return the extrapolated position of the vehicle, -1 if it is not tracked
+     */
+    public int estimate(String vehicleId, long simTime) {
+        TrafficEvent event = this.vehicles.get(vehicleId);
+        return event == null ? -1 : extrapolate(event, simTime);
+    }
+
+    /**
+     * @return the last report of every tracked vehicle
+     */
+    public Collection<TrafficEvent> getVehicles() {
+        return this.vehicles.values();
+    }
+
+    public boolean isEmpty() {
+        return this.vehicles.isEmpty();
+    }
+}
@@ -2,22 +2,59 @@ package main.java.device;
 
 import main.java.device.connections.AWSClient;
 import main.java.device.connections.MQTTClient;
+import main.java.device.runtime.ActorScheduler;
+import main.java.device.runtime.Conflator;
+import main.java.device.runtime.Deduplicator;
+import main.java.device.runtime.DeviceRegistry;
+import main.java.device.runtime.MessagePriority;
+import main.java.device.runtime.PriorityMailbox;
+import main.java.device.runtime.SequenceTracker;
+import main.java.device.runtime.StartupPhase;
+import main.java.device.runtime.TimingWheel;
+import main.java.device.streams.MessagePublisher;
+import main.java.device.streams.MessageStreams;
 import main.java.utils.Logger;
 import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
 import org.eclipse.paho.client.mqttv3.MqttException;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class represents a generic device
  */
 public abstract class Device implements Runnable{
+    /**
+     * Topic of the messages a device schedules to be delivered to itself, it never reaches any broker
+     */
+    public static final String TIMER_TOPIC = "$timer";
     protected String id;
     protected MQTTClient connection;
     protected AWSClient awsConnection;
-    protected final Queue<MQTTMessage> pendingMessages = new LinkedList<>();
-    protected boolean running = true;
+    private final Map<String, MessagePriority> priorities = new ConcurrentHashMap<>();
+    protected final PriorityMailbox<MQTTMessage> pendingMessages = new PriorityMailbox<>(MessagePriority.values().length, this::priorityOf, 16);
+    protected volatile boolean running = true;
+    protected final Conflator conflator = new Conflator();
+    protected final Deduplicator deduplicator = new Deduplicator();
+    protected final SequenceTracker sequenceTracker = new SequenceTracker();
+    private final List<MQTTMessage> batch = new ArrayList<>();
+    private int drainBatchSize = 64;
+    private volatile Thread worker;
+    private volatile boolean waiting = false;
+    private volatile ActorScheduler scheduler;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile MessagePublisher publisher;
+    private volatile boolean lazyAwsConnect = AWSClient.isLazyConnect();
+    private volatile boolean started = false;
 
     /**
      * Basic example constructor, it only connects to the server
@@ -25,6 +62,23 @@ public abstract class Device implements Runnable{
      */
     protected Device(String id) {
         this.id = id;
+        // A device lagging behind only needs the latest state, steps are collapsed into a single longer step
+        this.conflator.merge("SIMULATOR_STEP");
+        this.conflator.keepLatestBy("ROAD_STATUS", "road-segment");
+        this.conflator.keepLatestBy("TRAFFIC_SIGNAL", "id");
+        // Batches are not conflated: every process batches only its own vehicles, and with dead reckoning only the ones
+        // that reported in the step, so a later batch of a segment does not replace an earlier one
+        // Safety-critical messages must not wait behind the positions published by every vehicle at every step
+        this.priorities.put("ACCIDENT", MessagePriority.HIGH);
+        this.priorities.put("COMMAND", MessagePriority.HIGH);
+        this.priorities.put("TRAFFIC", MessagePriority.LOW);
+        this.priorities.put("TRAFFIC_BATCH", MessagePriority.LOW);
+        // Alerts and commands redelivered on the same topic, es. after a reconnection, must be acted upon once
+        this.deduplicator.check("ACCIDENT");
+        this.deduplicator.check("COMMAND");
+        // A late position of a vehicle must not overwrite a newer one
+        this.sequenceTracker.track("TRAFFIC");
+        this.sequenceTracker.track("TRAFFIC_BATCH");
     }
 
     /**
@@ -39,26 +93,119 @@ public abstract class Device implements Runnable{
      */
     public abstract void init() throws MqttException;
 
+    /**
+     * Starts the loop of the device on a thread of the execution mode selected in the DeviceRegistry
+     */
+    protected void start() {
+        long start = System.nanoTime();
+        this.started = true;
+        DeviceRegistry.start(this);
+        StartupPhase.START.record(start);
+    }
+
+    /**
+     * @return true once the init of the device started its loop
+     */
+    public boolean isStarted() {
+        return this.started;
+    }
+
     /**
      * This method is called when the thread is started, it loops indefinitely waiting for messages to be stored on the messages queue.
-     * To manage them it will call the handleMessage method
+     * The messages are drained in batches and, to manage them, it will call the handleMessage method outside any lock,
+     * so the threads delivering the messages never wait on the device logic
      */
     @Override
     public void run() {
-        while(this.running){
-            synchronized (this.pendingMessages){
-                while(this.pendingMessages.isEmpty()){
-                    try {
-                        this.pendingMessages.wait();
-                    } catch (InterruptedException e) {
-                        Logger.error(this.id, "An error occurred: " + e.getMessage());
-                    }
-                }
-                handleMessage(this.pendingMessages.poll());
+        this.worker = Thread.currentThread();
+        try {
+            while(this.running){
+                if(processBatch(this.drainBatchSize) > 0) continue;
+                // Announce that we are about to park and check again, so that a message offered in between is not missed
+                this.waiting = true;
+                if(this.pendingMessages.isEmpty() && this.running) LockSupport.park(this);
+                this.waiting = false;
             }
+        } finally {
+            terminate();
+        }
+    }
+
+    /**
+     * Drains a batch of messages from the messages queue, conflates it and handles the remaining messages
+     * @param max the maximum number of messages to be drained
+     * @return the number of drained messages
+     */
+    private int processBatch(int max) {
+        int drained = this.pendingMessages.drain(this.batch::add, max);
+        if(drained == 0) return 0;
+        try {
+            this.conflator.conflate(this.batch);
+            for(MQTTMessage message : this.batch) handleMessage(message);
+        } finally {
+            this.batch.clear();
+        }
+        return drained;
+    }
+
+    /**
+     * Runs the device as an actor on the given scheduler instead of on its own thread.
+     * From now on the device only takes a worker when there are messages to be handled
+     * @param scheduler the scheduler providing the workers
+     */
+    public void startOn(ActorScheduler scheduler) {
+        this.scheduler = scheduler;
+        wakeUp();
+    }
+
+    /**
+     * Executes a single turn of the device on a worker of the scheduler, handling at most the throughput of the scheduler.
+     * If messages are still pending at the end of the turn the device is scheduled again, behind the other devices
+     */
+    private void runTurn() {
+        ActorScheduler scheduler = this.scheduler;
+        try {
+            if(this.running) processBatch(scheduler.getThroughput());
+        } finally {
+            this.scheduled.set(false);
+            if(!this.running) terminate();
+            else if(!this.pendingMessages.isEmpty()) wakeUp();
+        }
+    }
+
+    /**
+     * Wakes the device up after a message has been stored, either unparking its thread or scheduling a turn on its scheduler
+     */
+    private void wakeUp() {
+        ActorScheduler scheduler = this.scheduler;
+        if(scheduler != null) {
+            if(this.running && this.scheduled.compareAndSet(false, true)) scheduler.execute(this::runTurn);
+        } else if(this.waiting) {
+            LockSupport.unpark(this.worker);
         }
     }
 
+    private void terminate() {
+        DeviceRegistry.unregister(this);
+        MessagePublisher publisher = this.publisher;
+        if(publisher != null) publisher.close();
+        this.terminated.countDown();
+    }
+
+    /**
+     * Waits for the device to stop
+     * @param timeoutMs the maximum time to wait in milliseconds, 0 to wait forever
+     * @return true if the device stopped before the timeout, false otherwise
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        if(timeoutMs == 0) {
+            this.terminated.await();
+            return true;
+        }
+        return this.terminated.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * This method is called by the thread where the device is running, it processes the message received from the queue of stored messages
      * @param message
@@ -70,14 +217,163 @@ public abstract class Device implements Runnable{
      */
     public void stop() {
         this.running = false;
+        Thread worker = this.worker;
+        if(worker != null) LockSupport.unpark(worker);
+        // An actor that is not in the middle of a turn has nothing left to wait for
+        if(this.scheduler != null && this.scheduled.compareAndSet(false, true)) terminate();
+    }
+
+    /**
+     * Stops the device and closes the connections it opened, es. after its init failed half way
+     */
+    public void disconnect() {
+        stop();
+        try {
+            if(this.connection != null) this.connection.disconnect();
+        } catch (MqttException e) {
+            Logger.error(this.id, "Error disconnecting from the broker: " + e.getMessage());
+        }
+        if(this.awsConnection != null) this.awsConnection.disconnect();
+    }
+
+    /**
+     * Schedules a timer message to be delivered once to this device after the given delay
+     * @param delayMs the delay in milliseconds
+     * @param name the name of the timer, it will be the "name" field of the TIMER message
+     * @return the handle to cancel the timer
+     */
+    protected TimingWheel.Timeout schedule(long delayMs, String name) {
+        MQTTMessage message = new MQTTMessage(TIMER_TOPIC, Message.createTimer(name));
+        return TimingWheel.getShared().schedule(delayMs, () -> onMessage(message));
+    }
+
+    /**
+     * Schedules a timer message to be delivered periodically to this device, until the timer is cancelled or the device stopped
+     * @param initialDelayMs the delay of the first message in milliseconds
+     * @param periodMs the period between two messages in milliseconds
+     * @param name the name of the timer, it will be the "name" field of the TIMER messages
+     * @return the handle to cancel the timer
+     */
+    protected TimingWheel.Timeout scheduleAtFixedRate(long initialDelayMs, long periodMs, String name) {
+        MQTTMessage message = new MQTTMessage(TIMER_TOPIC, Message.createTimer(name));
+        TimingWheel.Timeout[] timeout = new TimingWheel.Timeout[1];
+        timeout[0] = TimingWheel.getShared().scheduleAtFixedRate(initialDelayMs, periodMs, () -> {
+            if(this.running) onMessage(message);
+            else if(timeout[0] != null) timeout[0].cancel();
+        });
+        return timeout[0];
+    }
+
+    /**
+     * Sets the priority with which the messages of the given type are handled, types without a priority are handled as NORMAL
+     * @param type the type of the messages, es. 'ACCIDENT'
+     * @param priority the priority of the messages
+     */
+    public void setPriority(String type, MessagePriority priority) {
+        this.priorities.put(type, priority);
+    }
+
+    /**
+     * Sets how many higher priority messages can overtake a waiting lower priority message before it is handled anyway
+     * @param starvationLimit the limit, at least 1
+     */
+    public void setStarvationLimit(int starvationLimit) {
+        this.pendingMessages.setStarvationLimit(starvationLimit);
+    }
+
+    private int priorityOf(MQTTMessage message) {
+        return this.priorities.getOrDefault(message.getPayload().getType(), MessagePriority.NORMAL).ordinal();
+    }
+
+    /**
+     * Sets the maximum number of messages handled in a single drain of the messages queue
+     * @param drainBatchSize the size of the batch, at least 1
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        this.drainBatchSize = Math.max(1, drainBatchSize);
+    }
+
+    /**
+     * @return the number of messages waiting to be handled
+     */
+    public int getQueueDepth() {
+        return this.pendingMessages.size();
+    }
+
+    /**
+     * @param priority the priority lane
+     * @return the number of messages of the given priority waiting to be handled
+     */
+    public int getQueueDepth(MessagePriority priority) {
+        return this.pendingMessages.size(priority.ordinal());
+    }
+
+    /**
+     * @return the total number of messages handled by the device
+     */
+    public long getDrainedMessages() {
+        return this.pendingMessages.getDrainedCount();
+    }
+
+    /**
+     * @return the number of batches in which the handled messages were drained
+     */
+    public long getDrainBatches() {
+        return this.pendingMessages.getDrainBatches();
+    }
+
+    /**
+     * @return the number of queued messages discarded because a newer message about the same entity was queued
+     */
+    public long getDroppedMessages() {
+        return this.conflator.getDroppedCount();
+    }
+
+    /**
+     * @return the filter dropping the messages received more than once, with its metrics
+     */
+    public Deduplicator getDeduplicator() {
+        return this.deduplicator;
+    }
+
+    /**
+     * @return the number of received messages dropped because they had already been received
+     */
+    public long getDuplicateMessages() {
+        return this.deduplicator.getDuplicateCount();
+    }
+
+    /**
+     * @return the tracker of the sequence numbers of the received messages, with the stale and lost counts
+     */
+    public SequenceTracker getSequenceTracker() {
+        return this.sequenceTracker;
+    }
+
+    /**
+     * @return the number of queued messages merged into a later message of the same type
+     */
+    public long getMergedMessages() {
+        return this.conflator.getMergedCount();
     }
 
     protected void mqttConnect(String brokerAddress) throws MqttException {
+        long start = System.nanoTime();
         this.connection = new MQTTClient(this, brokerAddress);
+        StartupPhase.MQTT_CONNECT.record(start);
     }
 
     protected void awsConnect(String clientEndpoint, String certificateFile, String privateKeyFile) {
-        this.awsConnection = new AWSClient(this, clientEndpoint, certificateFile, privateKeyFile);
+        this.awsConnection = AWSClient.create(this, clientEndpoint, certificateFile, privateKeyFile, this.lazyAwsConnect);
+    }
+
+    /**
+     * Sets if the device connects to AWS on its first subscribe or publish instead of during its init,
+     * by default as set for all the AWS clients
+     * @param lazy true to connect lazily
+     */
+    public void setLazyAwsConnect(boolean lazy) {
+        this.lazyAwsConnect = lazy;
     }
 
     /**
@@ -85,9 +381,41 @@ public abstract class Device implements Runnable{
      * @param message the message received (containing the topic and the payload)
      */
     public void onMessage(MQTTMessage message) {
-        synchronized (this.pendingMessages) {
-            this.pendingMessages.add(message);
-            this.pendingMessages.notifyAll();
+        if(this.deduplicator.isDuplicate(message) || this.sequenceTracker.isStale(message)) return;
+        this.pendingMessages.offer(message);
+        wakeUp();
+        MessagePublisher publisher = this.publisher;
+        if(publisher != null) publisher.offer(message);
+    }
+
+    /**
+     * Returns a reactive view of all the messages received by the device, independent of the thread handling them.
+     * Every subscriber has a bounded buffer, messages that do not fit because the subscriber is too slow are dropped for it
+     * @return the publisher of the received messages
+     */
+    public Flow.Publisher<MQTTMessage> messages() {
+        MessagePublisher publisher = this.publisher;
+        if(publisher != null) return publisher;
+        synchronized (this) {
+            if(this.publisher == null) this.publisher = new MessagePublisher(Integer.getInteger("smartcity.stream.buffer", 256));
+            return this.publisher;
         }
     }
+
+    /**
+     * Returns a reactive view of the messages received by the device on the topics matching the filter
+     * @param topicFilter the topic filter, it can contain the MQTT wildcards + and #
+     * @return the publisher of the received messages
+     */
+    public Flow.Publisher<MQTTMessage> messages(String topicFilter) {
+        return MessageStreams.onTopic(messages(), topicFilter);
+    }
+
+    /**
+     * @return the number of received messages that were not delivered to a slow subscriber of the message streams
+     */
+    public long getStreamDroppedMessages() {
+        MessagePublisher publisher = this.publisher;
+        return publisher == null ? 0 : publisher.getDroppedCount();
+    }
 }
@@ -1,9 +1,16 @@
 package main.java.device;
 
+import main.java.device.vehicle.navigation.types.ERoadStatus;
 import main.java.utils.GlobalVars;
 import main.java.utils.Logger;
 import main.java.utils.MQTTMessage;
 import main.java.utils.Message;
+import main.java.utils.messages.AccidentEvent;
+import main.java.utils.messages.MessageType;
+import main.java.utils.messages.RoadStatus;
+import main.java.utils.messages.StepTick;
+import main.java.utils.messages.TrafficBatch;
+import main.java.utils.messages.TrafficEvent;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONObject;
 
@@ -27,6 +34,9 @@ public class InfoPanel extends Device{
     FunctionStatus accidentStatus;
     ArrayList<String> accidentsIds = new ArrayList<>();
     FunctionStatus circulationStatus;
+    // Special vehicles reporting with dead reckoning, whose positions are extrapolated at every step
+    final DeadReckoning specialVehicles = new DeadReckoning();
+    long simTime = -1;
     String clientEndpoint;
     String certificateFile;
     String privateKeyFile;
@@ -66,29 +76,37 @@ public class InfoPanel extends Device{
 
         // Get initial status of road segment
         JSONObject status = getRoadStatus(this.roadSegment);
-        handleRoadStatus(status);
+        handleRoadStatus(ERoadStatus.get(status.getString("status")));
 
-        new Thread(this).start();
+        this.start();
     }
 
     @Override
     protected void handleMessage(MQTTMessage message){
         String topic = message.getTopic();
         Message payload = message.getPayload();
-        Logger.trace(this.id, "Received message from " + topic + ": " + payload.toJson().toString());
+        Logger.trace(this.id, "Received message of type " + payload.getType() + " from " + topic);
 
         if (topic.endsWith("info")){
-            updateTrafficCongestion(payload.toJson());
+            updateTrafficCongestion(payload);
         } else if (topic.endsWith("alerts")){
-            updateAccident(payload.toJson());
+            updateAccident(payload);
         } else if (topic.endsWith("traffic")){
-            updateCirculation(payload.toJson());
+            updateCirculation(payload);
         } else if (topic.endsWith("step")){
+            if (payload.getMessageType() == MessageType.SIMULATOR_STEP) {
+                StepTick tick = payload.getTyped();
+                this.simTime = DeadReckoning.simTime(tick.step());
+                if (!this.specialVehicles.isEmpty()) {
+                    this.specialVehicles.expire(this.simTime);
+                    updateReservedCirculation();
+                }
+            }
             JSONObject update = new JSONObject();
             update.put("f1", this.trafficStatus.name());
             update.put("f2", this.accidentStatus.name());
             update.put("f3", this.circulationStatus.name());
-            this.awsConnection.publish("infopanel/"+this.id+"/status", update);
+            this.awsConnection.publishStatus("infopanel/"+this.id+"/status", update);
         } else if (topic.endsWith("command")){
             JSONObject command = payload.getMsg();
             String f1 = command.getString("f1");
@@ -102,27 +120,25 @@ public class InfoPanel extends Device{
         }
     }
 
-    private void updateTrafficCongestion(JSONObject payload){
-        String type = payload.getString("type");
-        if (type.equals("ROAD_STATUS")) {
-            JSONObject msg = payload.getJSONObject("msg");
-            handleRoadStatus(msg);
+    private void updateTrafficCongestion(Message payload){
+        if (payload.getMessageType() == MessageType.ROAD_STATUS) {
+            RoadStatus status = payload.getTyped();
+            handleRoadStatus(status.status());
         }
     }
 
-    private void handleRoadStatus(JSONObject msg){
-        String status = msg.getString("status");
-
+    private void handleRoadStatus(ERoadStatus status){
+        if (status == null) return;
         switch (status) {
-            case "Free_Flow":
-            case "Mostly_Free_Flow":
+            case Free_Flow:
+            case Mostly_Free_Flow:
                 this.trafficStatus = FunctionStatus.OFF;
                 break;
-            case "Limited_Manouvers":
+            case Limited_Manouvers:
                 this.trafficStatus = FunctionStatus.BLINK;
                 break;
-            case "No_Manouvers":
-            case "Collapsed":
+            case No_Manouvers:
+            case Collapsed:
                 this.trafficStatus = FunctionStatus.ON;
                 break;
         }
@@ -130,29 +146,22 @@ public class InfoPanel extends Device{
         Logger.info(this.id, "Traffic congestion status: " + this.trafficStatus);
     }
 
-    private void updateAccident(JSONObject payload){
-        String type = payload.getString("type");
-        if(type.equals("ACCIDENT")){
-            JSONObject msg = payload.getJSONObject("msg");
-            String event = msg.getString("event");
-            String accidentId = msg.getString("id");
+    private void updateAccident(Message payload){
+        if(payload.getMessageType() == MessageType.ACCIDENT){
+            AccidentEvent accident = payload.getTyped();
+            String accidentId = accident.id();
+            if (accident.event() == AccidentEvent.Event.UNKNOWN) return;
 
             // If event is OPEN, a new accident occurred, add it to active accident list
             // If event is CLOSE, remove it from active list, if list is empty, turn off signal
-            if (event.equals("OPEN")){
+            if (accident.event() == AccidentEvent.Event.OPEN){
                 if (!accidentsIds.contains(accidentId)) {
                     accidentsIds.add(accidentId);
                     Logger.info(this.id, "New accident added: " + accidentId);
                 }
                 accidentStatus = FunctionStatus.BLINK;
-            } else if(event.equals("CLOSE")){
-                // Remove element with same string
-                for (String id : accidentsIds){
-                    if (id.equals(accidentId)){
-                        accidentsIds.remove(id);
-                        break;
-                    }
-                }
+            } else {
+                accidentsIds.remove(accidentId);
                 Logger.info(this.id, "Accident removed: " + accidentId);
                 if (accidentsIds.size() == 0)
                     accidentStatus = FunctionStatus.OFF;
@@ -162,29 +171,79 @@ public class InfoPanel extends Device{
         }
     }
 
-    private void updateCirculation(JSONObject payload){
-        String type = payload.getString("type");
-        if (type.equals("TRAFFIC")){
-            JSONObject msg = payload.getJSONObject("msg");
-            String action = msg.getString("action");
-            String vehicle = msg.getString("vehicle-role");
-            int pos = msg.getInt("position");
+    private void updateCirculation(Message payload){
+        if (payload.getMessageType() == MessageType.TRAFFIC){
+            TrafficEvent traffic = payload.getTyped();
+            if (traffic.action() == TrafficEvent.Action.UNKNOWN) return;
+
+            if (traffic.hasMotion()){
+                trackSpecialVehicle(traffic);
+                return;
+            }
 
             circulationStatus = FunctionStatus.OFF;
 
-            if(vehicle.equals("Ambulance") || vehicle.equals("Police")){
-                if (action.equals("VEHICLE_IN")){
-                    if( abs(this.position - pos) <= 200) {
-                        circulationStatus = FunctionStatus.BLINK;
-                    } else if ( abs(this.position - pos) > 200) {
-                        circulationStatus = FunctionStatus.ON;
-                    }
-                }
+            if(traffic.isSpecialVehicle()){
+                circulationStatus = circulationOf(traffic);
                 Logger.info(this.id, "Reserved circulation status: " + this.circulationStatus);
             }
+        } else if (payload.getMessageType() == MessageType.TRAFFIC_BATCH){
+            // A batch carries all the vehicles in the segment, the closest special vehicle decides the status
+            TrafficBatch batch = payload.getTyped();
+            boolean special = false;
+
+            if (!batch.events().isEmpty() && batch.events().get(0).hasMotion()){
+                // The vehicles of the batch report with dead reckoning
+                for (TrafficEvent traffic : batch.events()){
+                    if (traffic.isSpecialVehicle() && traffic.action() != TrafficEvent.Action.UNKNOWN) this.specialVehicles.update(traffic);
+                }
+                updateReservedCirculation();
+                return;
+            }
+
+            circulationStatus = FunctionStatus.OFF;
+
+            for (TrafficEvent traffic : batch.events()){
+                if (!traffic.isSpecialVehicle() || traffic.action() == TrafficEvent.Action.UNKNOWN) continue;
+                special = true;
+                FunctionStatus status = circulationOf(traffic);
+                if (status == FunctionStatus.BLINK || circulationStatus == FunctionStatus.OFF) circulationStatus = status;
+            }
+            if (special) Logger.info(this.id, "Reserved circulation status: " + this.circulationStatus);
         }
     }
 
+    /**
+     * Updates the reserved circulation with the report of a vehicle using dead reckoning
+     * @param traffic the report, with the speed and the simulation time of the vehicle
+     */
+    private void trackSpecialVehicle(TrafficEvent traffic){
+        if (!traffic.isSpecialVehicle()) return;
+        this.specialVehicles.update(traffic);
+        updateReservedCirculation();
+    }
+
+    /**
+     * Sets the reserved circulation from the extrapolated positions of the tracked special vehicles
+     */
+    private void updateReservedCirculation(){
+        FunctionStatus status = FunctionStatus.OFF;
+        for (TrafficEvent traffic : this.specialVehicles.getVehicles()){
+            int position = DeadReckoning.extrapolate(traffic, this.simTime);
+            if (abs(this.position - position) <= 200) status = FunctionStatus.BLINK;
+            else if (status == FunctionStatus.OFF) status = FunctionStatus.ON;
+        }
+        if (status != this.circulationStatus){
+            this.circulationStatus = status;
+            Logger.info(this.id, "Reserved circulation status: " + this.circulationStatus);
+        }
+    }
+
+    private FunctionStatus circulationOf(TrafficEvent traffic){
+        if (traffic.action() != TrafficEvent.Action.VEHICLE_IN) return FunctionStatus.OFF;
+        return abs(this.position - traffic.position()) <= 200 ? FunctionStatus.BLINK : FunctionStatus.ON;
+    }
+
     public static void main(String[] args) {
         InfoPanel panel = new InfoPanel(args[0], args[1], Integer.parseInt(args[2]), AWS_ENDPOINT, GLOBAL_CERT, GLOBAL_KEY);
         try {
@@ -1,11 +1,14 @@
 package main.java.device;
 
+import main.java.device.runtime.Deduplicator;
+import main.java.device.vehicle.navigation.types.ERoadStatus;
 import main.java.utils.GlobalVars;
 import main.java.utils.Logger;
 import main.java.utils.MQTTMessage;
 import main.java.utils.Message;
+import main.java.utils.messages.MessageType;
+import main.java.utils.messages.RoadStatus;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
 
@@ -15,12 +18,14 @@ public class RoadManager extends Device {
     private final String certificateFile;
     private final String privateKeyFile;
     ArrayList<SpeedLimit> speedLimits = new ArrayList<>();
+    private final Deduplicator alerts = new Deduplicator();
 
     public RoadManager(String id, String clientEndpoint, String certificateFile, String privateKeyFile) {
         super(id);
         this.clientEndpoint = clientEndpoint;
         this.certificateFile = certificateFile;
         this.privateKeyFile = privateKeyFile;
+        this.alerts.check("ACCIDENT");
     }
 
     @Override
@@ -31,7 +36,7 @@ public class RoadManager extends Device {
 
         this.awsConnect(this.clientEndpoint, this.certificateFile, this.privateKeyFile);
         this.awsConnection.subscribe("road/+/alerts");
-        new Thread(this).start();
+        this.start();
     }
 
     @Override
@@ -42,10 +47,11 @@ public class RoadManager extends Device {
         String roadId = topic.split("/")[topic.split("/").length - 2];
 
         if(topic.endsWith("alerts")) {
-            // Retransmit the alert to the info topic
+            // The alert is received both from the broker and from AWS, it is retransmitted once to the info topics
+            if(this.alerts.isDuplicate(payload)) return;
             try {
-                this.connection.publish(topic.replace("alerts", "info"), payload.toJson());
-                this.awsConnection.publish("road/" + roadId + "/info", payload.toJson());
+                this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + roadId + "/info", payload);
+                this.awsConnection.publish("road/" + roadId + "/info", payload);
             } catch (MqttException e) {
                 Logger.error(this.id, "An error occurred: " + e.getMessage());
             }
@@ -55,36 +61,36 @@ public class RoadManager extends Device {
     }
 
     private void handleStatus(Message message) {
-        if(!message.getType().equals("ROAD_STATUS")) {
+        if(message.getMessageType() != MessageType.ROAD_STATUS) {
             Logger.warn(this.id, "Received a message of type " + message.getType() + " on a /info topic");
             return;
         }
 
         // Gett all the information from the message
-        JSONObject msg = message.getMsg();
-        String roadStatus = msg.getString("status");
-        String roadSegment = msg.getString("road-segment");
-        int startKm = msg.getInt("start-kp");
-        int endKm = msg.getInt("end-kp");
-        int speedLimit = msg.getInt("max-speed");
+        RoadStatus status = message.getTyped();
+        ERoadStatus roadStatus = status.status();
+        String roadSegment = status.segment();
+        int startKm = status.startKp();
+        int endKm = status.endKp();
+        int speedLimit = status.maxSpeed();
 
         Logger.debug(this.id, "Received status: " + roadStatus + " for road segment " + roadSegment + " with speed limit " + speedLimit);
 
-        switch (roadStatus) {
-            case "No_Manouvers":
-            case "Collapsed":
+        switch (roadStatus == null ? ERoadStatus.Closed : roadStatus) {
+            case No_Manouvers:
+            case Collapsed:
                 speedLimit = 20;
                 break;
-            case "Limited_Manouvers":
-            case "Restricted_Manouvers":
+            case Limited_Manouvers:
+            case Restricted_Manouvers:
                 speedLimit -= 20;
                 break;
-            case "Free_Flow":
-            case "Mostly_Free_Flow":
+            case Free_Flow:
+            case Mostly_Free_Flow:
                 speedLimit = 999;
                 break;
             default:
-                Logger.warn(this.id, "Received an unknown status: " + roadStatus);
+                Logger.warn(this.id, "Received an unknown status: " + message.getMsg().opt("status"));
         }
 
         // If speed limit is 999, remove the speed limit from the list with the corresponding road segment
@@ -46,15 +46,15 @@ public class SpeedLimit extends Device {
                 this.certificateFile,
                 this.privateKeyFile);
 
-        new Thread(this).start();
+        this.start();
     }
 
     @Override
     protected void handleMessage(MQTTMessage message) {
         Message response = Message.createTrafficSignal(this.id, this.roadSegment, "SPEED_LIMIT", this.initialPosition, this.finalPosition, this.speedLimit);
         try {
-            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + this.roadSegment + "/signals", response.toJson());
-            this.awsConnection.publish("speedLimit/" + this.roadSegment + "/status", response.toJson());
+            this.connection.publishOnChange(GlobalVars.BASE_TOPIC + "/road/" + this.roadSegment + "/signals", response);
+            this.awsConnection.publishOnChange("speedLimit/" + this.roadSegment + "/status", response);
         } catch (MqttException e) {
             Logger.warn(this.id, "An error occurred: " + e.getMessage());
         }
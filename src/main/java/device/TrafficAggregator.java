@@ -0,0 +1,125 @@
+package main.java.device;
+
+import main.java.utils.GlobalVars;
+import main.java.utils.Logger;
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+import main.java.utils.MessageIds;
+import main.java.utils.messages.MessageType;
+import main.java.utils.messages.TrafficEvent;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents the device aggregating the traffic of all the vehicles of the process.
+ * Instead of publishing their own TRAFFIC message at every step, the vehicles hand their traffic events to it, and at
+ * every step it publishes a single TRAFFIC_BATCH message per road segment on the same .../road/<roadSegment>/traffic
+ * topic, with the last event of every vehicle in the segment since the previous step. Events are thus published one step
+ * later, and the number of messages per step grows with the segments instead of the vehicles.
+ * Batching is opt-in, enabled with the system property "smartcity.traffic.batch"
+ */
+public class TrafficAggregator extends Device {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.traffic.batch");
+    private static TrafficAggregator shared;
+
+    private Map<String, Map<String, TrafficEvent>> pending = new HashMap<>();
+    private long events = 0;
+    private long batches = 0;
+
+    public TrafficAggregator(String id) {
+        super(id);
+    }
+
+    @Override
+    public void init() throws MqttException {
+        this.mqttConnect(GlobalVars.BROKER_ADDRESS);
+        this.connection.subscribe(GlobalVars.BASE_TOPIC + "/step");
+        this.start();
+    }
+
+    /**
+     * Enables batching for the vehicles initialized from now on
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Disables batching for the vehicles initialized from now on
+     */
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * @return true if the vehicles hand their traffic to the aggregator
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the aggregator of the process, creating and initializing it on the first call
+     * @return the aggregator
+     */
+    public static synchronized TrafficAggregator getShared() throws MqttException {
+        if (shared == null) {
+            // The node id keeps the producers of different processes apart
+            TrafficAggregator aggregator = new TrafficAggregator("TA-" + MessageIds.getNode());
+            aggregator.init();
+            shared = aggregator;
+        }
+        return shared;
+    }
+
+    /**
+     * Adds the traffic event of a vehicle to the next batch of its segment, replacing the previous event of the vehicle
+     * @param event the traffic event, it can be called by any thread
+     */
+    public void add(TrafficEvent event) {
+        synchronized (this) {
+            this.pending.computeIfAbsent(event.segment(), segment -> new LinkedHashMap<>()).put(event.vehicleId(), event);
+            this.events++;
+        }
+    }
+
+    @Override
+    protected void handleMessage(MQTTMessage message) {
+        if (message.getPayload().getMessageType() == MessageType.SIMULATOR_STEP) flush();
+    }
+
+    private void flush() {
+        Map<String, Map<String, TrafficEvent>> batch;
+        synchronized (this) {
+            if (this.pending.isEmpty()) return;
+            batch = this.pending;
+            this.pending = new HashMap<>();
+            this.batches += batch.size();
+        }
+        for (Map.Entry<String, Map<String, TrafficEvent>> segment : batch.entrySet()) {
+            try {
+                Message message = Message.createTrafficBatch(segment.getKey(), segment.getValue().values());
+                this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + segment.getKey() + "/traffic", message);
+            } catch (MqttException e) {
+                Logger.error(this.id, "Error publishing TRAFFIC_BATCH message: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of traffic events received from the vehicles
+     */
+    public synchronized long getEventCount() {
+        return this.events;
+    }
+
+    /**
+     * @return the number of batches published
+     */
+    public synchronized long getBatchCount() {
+        return this.batches;
+    }
+}
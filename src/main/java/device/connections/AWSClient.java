@@ -1,58 +1,345 @@
 package main.java.device.connections;
 
-import com.amazonaws.services.iot.client.AWSIotException;
-import com.amazonaws.services.iot.client.AWSIotMessage;
-import com.amazonaws.services.iot.client.AWSIotMqttClient;
-import com.amazonaws.services.iot.client.AWSIotQos;
-import com.amazonaws.services.iot.client.sample.sampleUtil.SampleUtil;
-import com.amazonaws.services.iot.client.sample.sampleUtil.SampleUtil.KeyStorePasswordPair;
 import main.java.device.Device;
+import main.java.device.runtime.StartupPhase;
+import main.java.utils.JsonWriter;
 import main.java.utils.Logger;
+import main.java.utils.Message;
+import main.java.utils.WireFormat;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class represents the connection to AWS IoT.
+ * The actual connection is made by the transport of Transports.getAwsProvider(), the AWS endpoint by default.
+ * Publishes are asynchronous and bounded by a publish window, errors are logged when the publish completes.
+ * With lazy connection (system property "smartcity.aws.lazy") the client connects in background on its first
+ * subscribe or publish, which are kept until the connection is established
+ */
 public class AWSClient {
-    private AWSIotMqttClient client;
+    private static volatile boolean lazyConnect = Boolean.getBoolean("smartcity.aws.lazy");
+
+    private volatile Transport transport;
+    private final PublishWindow publishWindow;
+    private final ProducerSequences sequences;
+    private final ChangeFilter changeFilter = new ChangeFilter();
     protected Device myDevice;
-    private String clientId;
+    private final String clientId;
+    private final String clientEndpoint;
+    private final String certificateFile;
+    private final String privateKeyFile;
+    private final TransportProvider provider;
+    private final List<String> pendingSubscriptions = new ArrayList<>();
+    private final boolean lazy;
+    private boolean connecting = false;
+    private Reconnector reconnector;
 
-    public AWSClient(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile) {
+    private AWSClient(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile, TransportProvider provider, boolean lazy) {
         this.myDevice = myDevice;
         this.clientId = myDevice.getId() + "-AWS";
-        KeyStorePasswordPair pair = SampleUtil.getKeyStorePasswordPair(certificateFile, privateKeyFile);
-        this.client = new AWSIotMqttClient(clientEndpoint, this.clientId, pair.keyStore, pair.keyPassword);
+        this.clientEndpoint = clientEndpoint;
+        this.certificateFile = certificateFile;
+        this.privateKeyFile = privateKeyFile;
+        this.provider = provider;
+        this.lazy = lazy;
+        this.publishWindow = new PublishWindow(this.clientId, this::send);
+        this.sequences = new ProducerSequences(myDevice.getId());
+    }
+
+    /**
+     * Creates the AWS client of a device and connects it, unless connections are lazy by default
+     * @param myDevice the device whose messages will be delivered
+     * @param clientEndpoint the AWS IoT endpoint
+     * @param certificateFile the certificate of the device
+     * @param privateKeyFile the private key of the device
+     * @return the client
+     */
+    public static AWSClient create(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile) {
+        return create(myDevice, clientEndpoint, certificateFile, privateKeyFile, lazyConnect);
+    }
+
+    /**
+     * Creates the AWS client of a device
+     * @param myDevice the device whose messages will be delivered
+     * @param clientEndpoint the AWS IoT endpoint
+     * @param certificateFile the certificate of the device
+     * @param privateKeyFile the private key of the device
+     * @param lazy true to connect in background on the first subscribe or publish instead of now
+     * @return the client
+     */
+    public static AWSClient create(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile, boolean lazy) {
+        return create(myDevice, clientEndpoint, certificateFile, privateKeyFile, Transports.getAwsProvider(), lazy);
+    }
+
+    public static AWSClient create(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile, TransportProvider provider, boolean lazy) {
+        AWSClient client = new AWSClient(myDevice, clientEndpoint, certificateFile, privateKeyFile, provider, lazy);
+        client.start();
+        return client;
+    }
+
+    private void start() {
+        if (this.lazy) {
+            // Publishes are buffered until the first use connects the client
+            this.publishWindow.connectionLost(null);
+        } else {
+            synchronized (this) {
+                this.connecting = true;
+            }
+            connect();
+        }
+    }
+
+    /**
+     * Sets the default laziness of the AWS clients created from now on, the clients created with an explicit
+     * laziness are not affected
+     * @param lazy true to connect lazily
+     */
+    public static void setLazyConnect(boolean lazy) {
+        lazyConnect = lazy;
+    }
+
+    public static boolean isLazyConnect() {
+        return lazyConnect;
+    }
+
+    /**
+     * @return true if the client connects on its first use
+     */
+    public boolean isLazy() {
+        return this.lazy;
+    }
+
+    /**
+     * Connects to AWS. If the connection fails it is retried with the backoff of a Reconnector, while the
+     * subscriptions and the publishes stay queued
+     * @return the error of the connection, null if it succeeded
+     */
+    private Throwable connect() {
+        long start = System.nanoTime();
+        Transport connected;
         try {
-            this.client.connect();
-        } catch (AWSIotException e) {
+            connected = this.provider.connect(this.myDevice, this.clientEndpoint, this.certificateFile, this.privateKeyFile);
+            StartupPhase.AWS_CONNECT.record(start);
+        } catch (MqttException e) {
             Logger.error(this.clientId, "Error connecting to AWS: " + e.getMessage());
+            if (!this.publishWindow.isPaused()) this.publishWindow.connectionLost(e);
+            retry();
+            return e;
+        }
+        List<String> topics;
+        synchronized (this) {
+            this.transport = connected;
+            topics = new ArrayList<>(this.pendingSubscriptions);
+            this.pendingSubscriptions.clear();
         }
+        for (String topic : topics) subscribe(topic);
+        if (this.publishWindow.isPaused()) this.publishWindow.connectionRestored();
+        connected.setConnectionListener(this.publishWindow);
+        return null;
+    }
+
+    private synchronized void retry() {
+        if (this.reconnector == null) {
+            // Attempts must not block the timing wheel, while connecting does
+            this.reconnector = new Reconnector(this.clientId, (onSuccess, onFailure) ->
+                    Thread.ofVirtual().name(this.clientId + "-connect").start(() -> {
+                        Throwable error = connect();
+                        if (error == null) onSuccess.run();
+                        else onFailure.accept(error);
+                    }));
+        }
+        this.reconnector.start();
+    }
+
+    /**
+     * Starts connecting in background if the client is lazy and not yet connecting
+     * @return the transport, null if it is not yet connected
+     */
+    private Transport ensureConnected() {
+        Transport current = this.transport;
+        if (current != null) return current;
+        synchronized (this) {
+            if (!this.connecting) {
+                this.connecting = true;
+                Thread.ofVirtual().name(this.clientId + "-connect").start(this::connect);
+            }
+            return this.transport;
+        }
+    }
+
+    private CompletableFuture<Void> send(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        Transport current = this.transport;
+        if (current == null) return CompletableFuture.failedFuture(new IllegalStateException("Not connected to AWS"));
+        return current.publishAsync(topic, payload, qos, retained);
     }
 
     public void subscribe(String topic) {
-        AWSTopicHandler topicHandler = new AWSTopicHandler(topic, clientId, myDevice);
+        Transport current = ensureConnected();
+        if (current == null) {
+            synchronized (this) {
+                current = this.transport;
+                if (current == null) {
+                    this.pendingSubscriptions.add(topic);
+                    return;
+                }
+            }
+        }
         try {
-            this.client.subscribe(topicHandler);
-        } catch (AWSIotException e) {
+            current.subscribe(topic);
+        } catch (MqttException e) {
             Logger.error(this.clientId, "Error subscribing to topic: " + topic);
         }
     }
 
     public void unsubscribe(String topic) {
+        Transport current;
+        synchronized (this) {
+            if (this.pendingSubscriptions.remove(topic)) return;
+            current = this.transport;
+        }
+        if (current == null) return;
         try {
-            this.client.unsubscribe(topic);
+            current.unsubscribe(topic);
             Logger.trace(this.clientId, "Unsubscribed from: " + topic);
-        } catch (AWSIotException e) {
+        } catch (MqttException e) {
             Logger.error(this.clientId, "Error unsubscribing from topic: " + topic);
         }
     }
 
-    public void publish(String topic, JSONObject payload) {
+    /**
+     * Publishes a message to the specified topic
+     * @param topic where to publish
+     * @param payload the message to publish
+     * @return a future completed when AWS completes the publish
+     */
+    public CompletableFuture<Void> publish(String topic, JSONObject payload) {
+        return publish(topic, payload.optString("type", null), new JsonWriter().value(payload).toByteArray());
+    }
+
+    /**
+     * Publishes a message to the specified topic, always as JSON since it is the format understood by AWS,
+     * stamped with the device as producer and the next sequence number of the topic
+     * @param topic where to publish
+     * @param message the message to publish
+     * @return a future completed when AWS completes the publish
+     */
+    public CompletableFuture<Void> publish(String topic, Message message) {
+        return publish(topic, message, 0);
+    }
+
+    /**
+     * Publishes a message to the specified topic, like publish(topic, message), with the given quality of service
+     * @param topic where to publish
+     * @param message the message to publish
+     * @param qos the quality of service, with 1 the future is completed when AWS acknowledges the message
+     * @return a future completed when AWS completes the publish
+     */
+    public CompletableFuture<Void> publish(String topic, Message message, int qos) {
+        return publish(topic, message.getType(), this.sequences.stamp(topic, message).encode(WireFormat.JSON), qos);
+    }
+
+    /**
+     * Publishes the status of the device, or hands it to the telemetry uplink of the process if it is enabled,
+     * which uploads only its changes, batched with the status of the other devices.
+     * Without the uplink, a status equal to the last one is suppressed when publish-on-change is enabled
+     * @param topic where the status is published, es. 'vehicles/<id>/status'
+     * @param status the status, it must not be modified afterwards
+     */
+    public void publishStatus(String topic, JSONObject status) {
+        if (TelemetryUplink.isEnabled()) {
+            // The uplink already sends only the changes
+            TelemetryUplink.getShared().update(this, topic, status);
+            return;
+        }
+        byte[] payload = new JsonWriter().value(status).toByteArray();
+        if (!ChangeFilter.isEnabled()) {
+            publish(topic, null, payload);
+            return;
+        }
+        long fingerprint = ChangeFilter.fingerprint(null, payload);
+        if (!this.changeFilter.shouldPublish(topic, fingerprint)) return;
+        publish(topic, null, payload).whenComplete((ignored, error) -> {
+            if (error != null) this.changeFilter.failed(topic, fingerprint);
+        });
+    }
+
+    /**
+     * Publishes a message that represents a state (es. a traffic signal) only if it differs from the last one published
+     * on the topic, or if the heartbeat elapsed, when publish-on-change is enabled.
+     * AWS IoT does not get retained messages through this client, so the heartbeat is what lets late subscribers converge
+     * @param topic where to publish
+     * @param message the message to publish
+     * @return a future completed when AWS completes the publish, or right away if it is suppressed
+     */
+    public CompletableFuture<Void> publishOnChange(String topic, Message message) {
+        if (!ChangeFilter.isEnabled()) return publish(topic, message);
+        long fingerprint = ChangeFilter.fingerprint(message.getType(), message.getMsgBytes());
+        if (!this.changeFilter.shouldPublish(topic, fingerprint)) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> result = publish(topic, message);
+        result.whenComplete((ignored, error) -> {
+            if (error != null) this.changeFilter.failed(topic, fingerprint);
+        });
+        return result;
+    }
+
+    /**
+     * @return the number of publishes suppressed because they repeated the last message of their topic
+     */
+    public long getSuppressedPublishes() {
+        return this.changeFilter.getSuppressedCount();
+    }
+
+    private CompletableFuture<Void> publish(String topic, String type, byte[] payload) {
+        return publish(topic, type, payload, 0);
+    }
+
+    private CompletableFuture<Void> publish(String topic, String type, byte[] payload, int qos) {
+        ensureConnected();
+        CompletableFuture<Void> result = this.publishWindow.publish(type, topic, payload, qos, false);
+        result.whenComplete((ignored, error) -> {
+            if (error != null) Logger.error(clientId, "Error publishing message: " + error.getMessage());
+        });
+        Logger.trace(clientId, "Published message to " + topic);
+        return result;
+    }
+
+    /**
+     * Closes the connection, or releases it if it is shared with other devices
+     */
+    public void disconnect() {
+        if (TelemetryUplink.isEnabled()) TelemetryUplink.getShared().forget(this);
+        Transport current = this.transport;
+        if (current == null) return;
         try {
-            AWSIotQos qos = AWSIotQos.QOS0;
-            AWSIotMessage message = new AWSIotMessage(topic, qos, payload.toString());
-            client.publish(message);
-            Logger.trace(clientId, "Published: " + payload);
-        } catch (AWSIotException e) {
-            Logger.error(clientId, "Error publishing message: " + e.getMessage());
+            current.disconnect();
+            Logger.info(this.clientId, "Disconnected from AWS");
+        } catch (MqttException e) {
+            Logger.error(this.clientId, "Error disconnecting from AWS: " + e.getMessage());
         }
     }
+
+    /**
+     * @return true if the client is connected, or at least tried to connect
+     */
+    public boolean isConnected() {
+        return this.transport != null;
+    }
+
+    /**
+     * @return the endpoint and the credentials of the client, the same for the clients with the same permissions
+     */
+    String getCredentialsKey() {
+        return this.clientEndpoint + "|" + this.certificateFile + "|" + this.privateKeyFile;
+    }
+
+    /**
+     * @return the window bounding the publishes of the client
+     */
+    public PublishWindow getPublishWindow() {
+        return this.publishWindow;
+    }
 }
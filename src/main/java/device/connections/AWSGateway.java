@@ -0,0 +1,392 @@
+package main.java.device.connections;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import main.java.device.Device;
+import main.java.utils.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class shares a few AWS IoT connections among all the devices of the process with the same credentials,
+ * instead of opening a TLS session per device. The gateway publishes on behalf of the devices, subscribes once per
+ * topic filter and connection and delivers every inbound message in-process, parsed once, to all the devices of the
+ * connection whose filters match its topic (es. 'vehicles/<id>/command' or 'infopanel/<id>/command').
+ * Every device goes through one of the connections, so a message matching several of its filters reaches it once.
+ * It is enabled with the system property "smartcity.aws.gateway", the number of connections per endpoint is set
+ * with "smartcity.aws.connections". The connections are closed when the last device disconnects
+ */
+public class AWSGateway {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.aws.gateway");
+    private static final Map<String, AWSGateway> gateways = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final String endpoint;
+    private final String certificateFile;
+    private final String privateKeyFile;
+    private final Connection[] connections;
+    private final Map<Device, Transport.ConnectionListener> listeners = new ConcurrentHashMap<>();
+    private int connectionsDown = 0;
+    private int devices = 0;
+
+    private AWSGateway(String key, String endpoint, String certificateFile, String privateKeyFile, int numberOfConnections) throws AWSIotException {
+        this.key = key;
+        this.endpoint = endpoint;
+        this.certificateFile = certificateFile;
+        this.privateKeyFile = privateKeyFile;
+        this.connections = new Connection[Math.max(1, numberOfConnections)];
+        String prefix = "SmartCity-" + UUID.randomUUID().toString().substring(0, 8) + "-AWS";
+        for (int i = 0; i < this.connections.length; i++) {
+            this.connections[i] = new Connection(prefix + "-" + i, endpoint, certificateFile, privateKeyFile);
+        }
+    }
+
+    /**
+     * @return true if the devices should share the connections of the gateway instead of opening their own
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the gateway for the connections created from now on
+     * @param enable true to share the connections among devices
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Returns the gateway of the given endpoint and credentials, connecting to AWS on first use
+     * @param endpoint the AWS IoT endpoint
+     * @param certificateFile the certificate used by the shared connections
+     * @param privateKeyFile the private key used by the shared connections
+     * @return the gateway
+     * @throws MqttException if the credentials cannot be loaded
+     */
+    public static AWSGateway forEndpoint(String endpoint, String certificateFile, String privateKeyFile) throws MqttException {
+        // Devices with different credentials may have different permissions, so they do not share connections
+        String key = endpoint + "|" + certificateFile + "|" + privateKeyFile;
+        AWSGateway gateway = gateways.get(key);
+        if (gateway != null) return gateway;
+        synchronized (gateways) {
+            gateway = gateways.get(key);
+            if (gateway == null) {
+                try {
+                    gateway = new AWSGateway(key, endpoint, certificateFile, privateKeyFile, Integer.getInteger("smartcity.aws.connections", 1));
+                } catch (AWSIotException e) {
+                    throw new MqttException(e);
+                }
+                gateways.put(key, gateway);
+            }
+            return gateway;
+        }
+    }
+
+    /**
+     * Returns a transport that subscribes and publishes on behalf of the device through the shared connections.
+     * If the last device closed this gateway in the meantime, the device is opened on a new one
+     * @param device the device
+     * @return the transport of the device
+     * @throws MqttException if the credentials of a new gateway cannot be loaded
+     */
+    public Transport open(Device device) throws MqttException {
+        // The device is counted under the same lock as release(), so it never gets connections being closed
+        synchronized (gateways) {
+            if (gateways.get(this.key) != this) return forEndpoint(this.endpoint, this.certificateFile, this.privateKeyFile).open(device);
+            synchronized (this) {
+                this.devices++;
+            }
+        }
+        // The publishes of the device go through its own connection, so they keep their order
+        Connection connection = connectionFor(device);
+        return new Transport() {
+            @Override
+            public void subscribe(String topic) {
+                AWSGateway.this.subscribe(topic, device);
+            }
+
+            @Override
+            public void unsubscribe(String topic) {
+                AWSGateway.this.unsubscribe(topic, device);
+            }
+
+            @Override
+            public void publish(String topic, byte[] payload, int qos, boolean retained) {
+                publishAsync(topic, payload, qos, retained);
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+                return connection.publishAsync(topic, payload, qos);
+            }
+
+            @Override
+            public void disconnect() {
+                listeners.remove(device);
+                unsubscribeAll(device);
+                release();
+            }
+
+            @Override
+            public void setConnectionListener(ConnectionListener listener) {
+                listeners.put(device, listener);
+                synchronized (AWSGateway.this) {
+                    if (connectionsDown > 0) listener.connectionLost(null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Subscribes the device to the topic filter, the AWS subscription is only made by the first device
+     * @param topic the topic filter
+     * @param device the subscribing device
+     */
+    public void subscribe(String topic, Device device) {
+        connectionFor(device).subscribe(topic, device);
+    }
+
+    /**
+     * Unsubscribes the device from the topic filter, the AWS subscription is removed with the last device
+     * @param topic the topic filter
+     * @param device the unsubscribing device
+     */
+    public void unsubscribe(String topic, Device device) {
+        connectionFor(device).unsubscribe(topic, device);
+    }
+
+    /**
+     * Removes all the subscriptions of the device
+     * @param device the device
+     */
+    public void unsubscribeAll(Device device) {
+        Connection connection = connectionFor(device);
+        for (String topic : connection.topicsOf(device)) connection.unsubscribe(topic, device);
+    }
+
+    /**
+     * Publishes a message on one of the shared connections without waiting for AWS
+     * @param topic where to publish
+     * @param payload the message to publish
+     * @param qos the MQTT quality of service
+     * @return a future completed when AWS completes the publish
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos) {
+        return connectionFor(topic).publishAsync(topic, payload, qos);
+    }
+
+    /**
+     * @return the number of distinct topic filters subscribed on AWS
+     */
+    public int getNumberOfSubscriptions() {
+        int count = 0;
+        for (Connection connection : this.connections) count += connection.subscriptions.size();
+        return count;
+    }
+
+    /**
+     * @return the number of devices using the gateway
+     */
+    public synchronized int getNumberOfDevices() {
+        return this.devices;
+    }
+
+    private void release() {
+        synchronized (gateways) {
+            synchronized (this) {
+                if (--this.devices > 0) return;
+            }
+            gateways.remove(this.key, this);
+        }
+        for (Connection connection : this.connections) connection.close();
+    }
+
+    /**
+     * The devices are told that the link is down as soon as one of the connections is lost, and that it is back
+     * once all of them are connected again
+     * @param up true if a connection was restored, false if it was lost
+     */
+    private synchronized void connectionChanged(boolean up) {
+        int before = this.connectionsDown;
+        this.connectionsDown += up ? -1 : 1;
+        if (before == 0 && this.connectionsDown == 1) {
+            for (Transport.ConnectionListener listener : this.listeners.values()) listener.connectionLost(null);
+        } else if (before == 1 && this.connectionsDown == 0) {
+            for (Transport.ConnectionListener listener : this.listeners.values()) listener.connectionRestored();
+        }
+    }
+
+    private Connection connectionFor(String topic) {
+        return this.connections[Math.floorMod(topic.hashCode(), this.connections.length)];
+    }
+
+    private Connection connectionFor(Device device) {
+        return this.connections[Math.floorMod(Objects.hashCode(device.getId()), this.connections.length)];
+    }
+
+    /**
+     * A single connection to AWS with the devices subscribed through it
+     */
+    private class Connection {
+        private final String clientId;
+        private final AWSIotMqttClient client;
+        private final TopicTrie<Device> routes = new TopicTrie<>();
+        private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        private final Set<String> subscribedOnAws = ConcurrentHashMap.newKeySet();
+        private final Map<Device, Set<String>> topicsByDevice = new ConcurrentHashMap<>();
+        // Messages are dropped from the set once all the handlers they were handed to have run
+        private final Set<AWSIotMessage> dispatched = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+        private final Reconnector reconnector;
+        private volatile boolean connected = false;
+        private volatile boolean closed = false;
+
+        Connection(String clientId, String endpoint, String certificateFile, String privateKeyFile) throws AWSIotException {
+            this.clientId = clientId;
+            this.client = new AWSIotMqttClient(endpoint, clientId, CredentialCache.getSocketFactory(certificateFile, privateKeyFile)) {
+                @Override
+                public void onConnectionSuccess() {
+                    super.onConnectionSuccess();
+                    setConnected(true);
+                }
+
+                @Override
+                public void onConnectionClosed() {
+                    super.onConnectionClosed();
+                    setConnected(false);
+                }
+
+                @Override
+                public void onConnectionFailure() {
+                    super.onConnectionFailure();
+                    setConnected(false);
+                    if (!closed) reconnector.start();
+                }
+            };
+            this.reconnector = new Reconnector(clientId, (onSuccess, onFailure) ->
+                    Thread.ofVirtual().name(clientId + "-connect").start(() -> {
+                        try {
+                            this.client.connect();
+                            onSuccess.run();
+                        } catch (AWSIotException e) {
+                            onFailure.accept(e);
+                        }
+                    }));
+            // The devices see the connection as down until it is established
+            connectionChanged(false);
+            try {
+                this.client.connect();
+                Logger.info(clientId, "Shared connection to AWS at " + endpoint);
+            } catch (AWSIotException e) {
+                Logger.error(clientId, "Error connecting to AWS: " + e.getMessage());
+                this.reconnector.start();
+            }
+        }
+
+        private void setConnected(boolean isConnected) {
+            if (this.connected == isConnected) return;
+            this.connected = isConnected;
+            // Subscribing blocks, so it is not done on the thread of the SDK callbacks
+            if (isConnected) Thread.ofVirtual().name(this.clientId + "-restore").start(this::restore);
+            connectionChanged(isConnected);
+        }
+
+        synchronized void subscribe(String topic, Device device) {
+            if (this.routes.subscribers(topic) == 0) {
+                this.subscriptions.add(topic);
+                if (this.connected) subscribeOnAws(topic);
+            }
+            this.routes.subscribe(topic, device);
+            this.topicsByDevice.computeIfAbsent(device, d -> ConcurrentHashMap.newKeySet()).add(topic);
+        }
+
+        synchronized void unsubscribe(String topic, Device device) {
+            Set<String> topics = this.topicsByDevice.get(device);
+            if (topics == null || !topics.remove(topic)) return;
+            if (topics.isEmpty()) this.topicsByDevice.remove(device);
+            if (!this.routes.unsubscribe(topic, device)) return;
+            this.subscriptions.remove(topic);
+            if (!this.subscribedOnAws.remove(topic)) return;
+            try {
+                this.client.unsubscribe(topic);
+                Logger.trace(this.clientId, "Unsubscribed from " + topic);
+            } catch (AWSIotException e) {
+                Logger.error(this.clientId, "Error unsubscribing from topic: " + topic);
+            }
+        }
+
+        private void subscribeOnAws(String topic) {
+            try {
+                this.client.subscribe(new AWSTopicHandler(topic, this.clientId, this.routes, this.dispatched));
+                this.subscribedOnAws.add(topic);
+                Logger.trace(this.clientId, "Subscribed to " + topic);
+            } catch (AWSIotException e) {
+                Logger.error(this.clientId, "Error subscribing to topic: " + topic);
+            }
+        }
+
+        /**
+         * Makes on AWS the subscriptions requested while the connection was down, the ones already made are
+         * restored by the SDK itself
+         */
+        private synchronized void restore() {
+            for (String topic : this.subscriptions) {
+                if (!this.subscribedOnAws.contains(topic)) subscribeOnAws(topic);
+            }
+        }
+
+        List<String> topicsOf(Device device) {
+            Set<String> topics = this.topicsByDevice.get(device);
+            return topics == null ? new ArrayList<>() : new ArrayList<>(topics);
+        }
+
+        CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            AWSIotMessage message = new AWSIotMessage(topic, qos == 0 ? AWSIotQos.QOS0 : AWSIotQos.QOS1, payload) {
+                @Override
+                public void onSuccess() {
+                    result.complete(null);
+                }
+
+                @Override
+                public void onFailure() {
+                    result.completeExceptionally(new AWSIotException(getErrorCode(), getErrorMessage()));
+                }
+
+                @Override
+                public void onTimeout() {
+                    result.completeExceptionally(new AWSIotException("Publish timed out"));
+                }
+            };
+            try {
+                this.client.publish(message, Long.getLong("smartcity.aws.publishTimeout", 10000));
+            } catch (AWSIotException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        void close() {
+            this.closed = true;
+            this.reconnector.stop();
+            try {
+                this.client.disconnect();
+                Logger.info(this.clientId, "Shared connection to AWS closed");
+            } catch (AWSIotException e) {
+                Logger.error(this.clientId, "Error disconnecting from AWS: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package main.java.device.connections;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import main.java.device.Device;
+import main.java.utils.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * This class represents a dedicated connection of a device to AWS IoT, through its own AWS IoT client.
+ * Errors are logged instead of being thrown, as AWS is only used for monitoring and remote commands.
+ * The SDK reconnects by itself a connection that drops, a connection that cannot be established at all is retried
+ * with a jittered backoff and the subscriptions requested in the meantime are made once connected
+ */
+public final class AWSIotTransport implements Transport {
+    private static final long PUBLISH_TIMEOUT_MS = Long.getLong("smartcity.aws.publishTimeout", 10000);
+
+    private final AWSIotMqttClient client;
+    private final Device myDevice;
+    private final String clientId;
+    private final Set<String> pendingSubscriptions = ConcurrentHashMap.newKeySet();
+    private final Reconnector reconnector;
+    private volatile ConnectionListener listener;
+    private volatile boolean connected = false;
+
+    public AWSIotTransport(Device myDevice, String clientEndpoint, String certificateFile, String privateKeyFile) throws MqttException {
+        this.myDevice = myDevice;
+        this.clientId = myDevice.getId() + "-AWS";
+        SSLSocketFactory socketFactory;
+        try {
+            socketFactory = CredentialCache.getSocketFactory(certificateFile, privateKeyFile);
+        } catch (AWSIotException e) {
+            throw new MqttException(e);
+        }
+        this.client = new AWSIotMqttClient(clientEndpoint, this.clientId, socketFactory) {
+            @Override
+            public void onConnectionSuccess() {
+                super.onConnectionSuccess();
+                connectionChanged(true);
+            }
+
+            @Override
+            public void onConnectionClosed() {
+                super.onConnectionClosed();
+                connectionChanged(false);
+            }
+
+            @Override
+            public void onConnectionFailure() {
+                super.onConnectionFailure();
+                // The SDK gave up reconnecting
+                connectionChanged(false);
+                reconnector.start();
+            }
+        };
+        this.reconnector = new Reconnector(this.clientId, this::connectAsync);
+        this.reconnector.setOnReconnected(this::subscribePending);
+        try {
+            this.client.connect();
+        } catch (AWSIotException e) {
+            Logger.error(this.clientId, "Error connecting to AWS: " + e.getMessage());
+            this.reconnector.start();
+        }
+    }
+
+    @Override
+    public void subscribe(String topic) {
+        AWSTopicHandler topicHandler = new AWSTopicHandler(topic, clientId, myDevice);
+        try {
+            this.client.subscribe(topicHandler);
+        } catch (AWSIotException e) {
+            if (this.connected) Logger.error(this.clientId, "Error subscribing to topic: " + topic);
+            // Subscribed again once connected
+            this.pendingSubscriptions.add(topic);
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        if (this.pendingSubscriptions.remove(topic)) return;
+        try {
+            this.client.unsubscribe(topic);
+        } catch (AWSIotException e) {
+            Logger.error(this.clientId, "Error unsubscribing from topic: " + topic);
+        }
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained) {
+        try {
+            AWSIotMessage message = new AWSIotMessage(topic, qos == 0 ? AWSIotQos.QOS0 : AWSIotQos.QOS1, payload);
+            client.publish(message);
+        } catch (AWSIotException e) {
+            Logger.error(clientId, "Error publishing message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AWSIotMessage message = new AWSIotMessage(topic, qos == 0 ? AWSIotQos.QOS0 : AWSIotQos.QOS1, payload) {
+            @Override
+            public void onSuccess() {
+                result.complete(null);
+            }
+
+            @Override
+            public void onFailure() {
+                result.completeExceptionally(new AWSIotException(getErrorCode(), getErrorMessage()));
+            }
+
+            @Override
+            public void onTimeout() {
+                result.completeExceptionally(new AWSIotException("Publish timed out"));
+            }
+        };
+        try {
+            client.publish(message, PUBLISH_TIMEOUT_MS);
+        } catch (AWSIotException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void disconnect() {
+        try {
+            this.client.disconnect();
+        } catch (AWSIotException e) {
+            Logger.error(clientId, "Error disconnecting from AWS: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void setConnectionListener(ConnectionListener listener) {
+        this.listener = listener;
+        if (!this.connected) listener.connectionLost(null);
+    }
+
+    private void connectionChanged(boolean isConnected) {
+        if (this.connected == isConnected) return;
+        this.connected = isConnected;
+        ConnectionListener current = this.listener;
+        if (current == null) return;
+        if (isConnected) current.connectionRestored();
+        else current.connectionLost(null);
+    }
+
+    private void connectAsync(Runnable onSuccess, Consumer<Throwable> onFailure) {
+        // The SDK connect is blocking, it must not run on the timer thread
+        Thread.ofVirtual().name(this.clientId + "-connect").start(() -> {
+            try {
+                this.client.connect();
+                onSuccess.run();
+            } catch (AWSIotException e) {
+                onFailure.accept(e);
+            }
+        });
+    }
+
+    private void subscribePending() {
+        for (String topic : this.pendingSubscriptions) {
+            this.pendingSubscriptions.remove(topic);
+            subscribe(topic);
+        }
+    }
+}
@@ -6,23 +6,51 @@ import com.amazonaws.services.iot.client.AWSIotTopic;
 import main.java.device.Device;
 import main.java.utils.MQTTMessage;
 import main.java.utils.Message;
-import org.json.JSONObject;
+
+import java.util.Set;
 
 public class AWSTopicHandler extends AWSIotTopic {
     private final String clientId;
     private final Device myDevice;
+    private final TopicTrie<Device> routes;
+    private final Set<AWSIotMessage> dispatched;
+
     public AWSTopicHandler(String topic, String clientId, Device myDevice) {
         super(topic, AWSIotQos.QOS0);
         this.clientId = clientId;
         this.myDevice = myDevice;
+        this.routes = null;
+        this.dispatched = null;
+    }
+
+    /**
+     * Creates a handler shared by several devices, every message is parsed once and delivered to all the devices
+     * whose subscriptions in the routes match its topic.
+     * The SDK hands the same message to the handler of every matching filter, the first handler to receive it
+     * delivers it to all the devices and the others skip it, so overlapping filters do not cause duplicates
+     * @param topic the topic filter subscribed on AWS
+     * @param clientId the id of the AWS client
+     * @param routes the subscriptions of the devices
+     * @param dispatched the messages already delivered, shared by all the handlers of the client
+     */
+    public AWSTopicHandler(String topic, String clientId, TopicTrie<Device> routes, Set<AWSIotMessage> dispatched) {
+        super(topic, AWSIotQos.QOS0);
+        this.clientId = clientId;
+        this.myDevice = null;
+        this.routes = routes;
+        this.dispatched = dispatched;
     }
 
     @Override
     public void onMessage(AWSIotMessage message) {
-        JSONObject payload = new JSONObject(message.getStringPayload());
-        Message myMessage = new Message(payload);
+        if (this.dispatched != null && !this.dispatched.add(message)) return;
+        Message myMessage = Message.parse(message.getPayload());
         MQTTMessage mqttMessage = new MQTTMessage(message.getTopic(), myMessage);
         // Logger.debug(clientId, "Message received on topic: " + mqttMessage.getTopic() + " with payload: " + mqttMessage.getPayload().getMsg().toString());
-        myDevice.onMessage(mqttMessage);
+        if (routes == null) {
+            myDevice.onMessage(mqttMessage);
+            return;
+        }
+        for (Device device : routes.match(mqttMessage.getTopic())) device.onMessage(mqttMessage);
     }
 }
@@ -0,0 +1,108 @@
+package main.java.device.connections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class suppresses the publishes of a client that repeat the last payload published on the same topic, es. a speed
+ * limit republished at every step while it does not change. It keeps a 64-bit fingerprint of the last payload of every
+ * topic, the message id, timestamp and sequence number excluded, and lets a repeated payload through only once every
+ * heartbeat, so that subscribers joining later still receive it.
+ * It is enabled with the system property "smartcity.publish.onChange", the heartbeat in milliseconds is set with
+ * "smartcity.publish.heartbeat" (0 to never repeat a payload). With "smartcity.publish.retained" the filtered payloads are
+ * also published as retained messages, so that the broker hands the last one to new subscribers right away
+ */
+class ChangeFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.publish.onChange");
+    private static volatile boolean retained = Boolean.getBoolean("smartcity.publish.retained");
+
+    private final long heartbeatNanos;
+    private final Map<String, Published> published = new ConcurrentHashMap<>();
+    private final LongAdder suppressed = new LongAdder();
+
+    ChangeFilter() {
+        this(Long.getLong("smartcity.publish.heartbeat", 10000));
+    }
+
+    /**
+     * @param heartbeatMs the time after which an unchanged payload is published again, 0 to never publish it again
+     */
+    ChangeFilter(long heartbeatMs) {
+        this.heartbeatNanos = heartbeatMs <= 0 ? Long.MAX_VALUE : heartbeatMs * 1_000_000;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * @return true if the filtered payloads are published as retained messages
+     */
+    static boolean isRetained() {
+        return retained;
+    }
+
+    static void setRetained(boolean retain) {
+        retained = retain;
+    }
+
+    /**
+     * Checks if a payload has to be published, and if so records it as the last payload of the topic
+     * @param topic the topic
+     * @param fingerprint the fingerprint of the payload
+     * @return false if the payload is the last one published on the topic and the heartbeat has not elapsed
+     */
+    boolean shouldPublish(String topic, long fingerprint) {
+        long now = System.nanoTime();
+        Published last = this.published.get(topic);
+        if (last != null && last.fingerprint == fingerprint && now - last.time < this.heartbeatNanos) {
+            this.suppressed.increment();
+            return false;
+        }
+        this.published.put(topic, new Published(fingerprint, now));
+        return true;
+    }
+
+    /**
+     * Forgets a payload whose publish failed, so that the next identical one is published again
+     * @param topic the topic
+     * @param fingerprint the fingerprint of the payload
+     */
+    void failed(String topic, long fingerprint) {
+        this.published.computeIfPresent(topic, (t, last) -> last.fingerprint == fingerprint ? null : last);
+    }
+
+    /**
+     * @return the number of publishes suppressed
+     */
+    long getSuppressedCount() {
+        return this.suppressed.sum();
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a type and a payload
+     * @param type the type of the message, es. 'TRAFFIC_SIGNAL', or null
+     * @param payload the payload without the fields changing at every publish
+     * @return the fingerprint
+     */
+    static long fingerprint(String type, byte[] payload) {
+        long hash = FNV_OFFSET;
+        if (type != null) {
+            for (int i = 0; i < type.length(); i++) hash = (hash ^ type.charAt(i)) * FNV_PRIME;
+        }
+        // Separates the type from the payload
+        hash = (hash ^ 0xFF) * FNV_PRIME;
+        for (byte b : payload) hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        return hash;
+    }
+
+    private record Published(long fingerprint, long time) {}
+}
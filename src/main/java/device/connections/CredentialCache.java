@@ -0,0 +1,107 @@
+package main.java.device.connections;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.sample.sampleUtil.SampleUtil;
+import com.amazonaws.services.iot.client.sample.sampleUtil.SampleUtil.KeyStorePasswordPair;
+import com.amazonaws.services.iot.client.util.AwsIotTlsSocketFactory;
+import main.java.utils.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the TLS credentials of the AWS connections, keyed by certificate and private key files.
+ * The PEM files are parsed and the key store and SSL context are built only the first time a pair is used, then all
+ * the clients with the same credentials (es. all the vehicles) share the same socket factory. Sharing the SSL context
+ * also shares its client session cache, so the connections after the first one resume the TLS session with AWS
+ * instead of doing a full handshake. The session cache can be tuned with "smartcity.tls.sessionCacheSize" and
+ * "smartcity.tls.sessionTimeout" (in seconds)
+ */
+public class CredentialCache {
+    private static final Map<String, SSLSocketFactory> factories = new ConcurrentHashMap<>();
+    private static final AtomicLong loads = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+
+    private CredentialCache() {}
+
+    /**
+     * Returns the socket factory of the given credentials, loading them on first use
+     * @param certificateFile the certificate file of the device
+     * @param privateKeyFile the private key file of the device
+     * @return the shared socket factory
+     * @throws AWSIotException if the credentials cannot be loaded
+     */
+    public static SSLSocketFactory getSocketFactory(String certificateFile, String privateKeyFile) throws AWSIotException {
+        String key = Paths.get(certificateFile).toAbsolutePath().normalize() + "|" + Paths.get(privateKeyFile).toAbsolutePath().normalize();
+        SSLSocketFactory factory = factories.get(key);
+        if (factory != null) {
+            hits.incrementAndGet();
+            return factory;
+        }
+        // Devices with the same credentials starting together wait for a single load
+        synchronized (factories) {
+            factory = factories.get(key);
+            if (factory == null) {
+                factory = load(certificateFile, privateKeyFile);
+                factories.put(key, factory);
+            } else {
+                hits.incrementAndGet();
+            }
+            return factory;
+        }
+    }
+
+    private static SSLSocketFactory load(String certificateFile, String privateKeyFile) throws AWSIotException {
+        long start = System.nanoTime();
+        KeyStorePasswordPair pair = SampleUtil.getKeyStorePasswordPair(certificateFile, privateKeyFile);
+        if (pair == null) throw new AWSIotException("Cannot load the credentials " + certificateFile);
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(pair.keyStore, pair.keyPassword.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(Integer.getInteger("smartcity.tls.sessionCacheSize", 0));
+            sessions.setSessionTimeout(Integer.getInteger("smartcity.tls.sessionTimeout", 86400));
+            loads.incrementAndGet();
+            Logger.info("Credentials", "Loaded " + certificateFile + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return new AwsIotTlsSocketFactory(context.getSocketFactory());
+        } catch (Exception e) {
+            throw new AWSIotException(e);
+        }
+    }
+
+    /**
+     * Forgets all the credentials, es. after they are rotated
+     */
+    public static void clear() {
+        factories.clear();
+    }
+
+    /**
+     * @return the number of distinct credentials cached
+     */
+    public static int size() {
+        return factories.size();
+    }
+
+    /**
+     * @return the number of times credentials were loaded from the files
+     */
+    public static long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of times cached credentials were reused
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+}
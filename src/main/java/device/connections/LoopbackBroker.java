@@ -0,0 +1,171 @@
+package main.java.device.connections;
+
+import main.java.device.Device;
+import main.java.utils.Logger;
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents an in-memory MQTT broker, so several devices can talk to each other inside the same JVM
+ * without any network. Topic filters follow the MQTT rules (+ and # wildcards, $ topics not matched by wildcards at
+ * the first level), retained messages are kept per topic and delivered on subscription, and every published message
+ * is parsed once and delivered to each matching device only once, even with overlapping subscriptions
+ */
+public class LoopbackBroker {
+    private static final Map<String, LoopbackBroker> brokers = new ConcurrentHashMap<>();
+    // Publishers run on many threads, each of them reuses its own set for the fan-out
+    private static final ThreadLocal<Set<Device>> receivers = ThreadLocal.withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private final String address;
+    private final TopicTrie<Device> routes = new TopicTrie<>();
+    private final Map<Device, Set<String>> topicsByDevice = new ConcurrentHashMap<>();
+    private final Map<String, MQTTMessage> retained = new ConcurrentHashMap<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+
+    private LoopbackBroker(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Returns the broker of the given address, creating it on first use
+     * @param address the address of the broker
+     * @return the broker
+     */
+    public static LoopbackBroker forAddress(String address) {
+        return brokers.computeIfAbsent(address, LoopbackBroker::new);
+    }
+
+    /**
+     * Connects a device to the broker
+     * @param device the device whose messages will be delivered
+     * @return the transport of the device
+     */
+    public Transport connect(Device device) {
+        Logger.trace(device.getId(), "Connected to loopback broker " + this.address);
+        return new Transport() {
+            @Override
+            public void subscribe(String topic) {
+                LoopbackBroker.this.subscribe(topic, device);
+            }
+
+            @Override
+            public void unsubscribe(String topic) {
+                LoopbackBroker.this.unsubscribe(topic, device);
+            }
+
+            @Override
+            public void publish(String topic, byte[] payload, int qos, boolean retain) {
+                LoopbackBroker.this.publish(topic, payload, retain);
+            }
+
+            @Override
+            public void disconnect() {
+                LoopbackBroker.this.disconnect(device);
+            }
+        };
+    }
+
+    /**
+     * Subscribes the device to the topic filter and delivers the retained messages matching it
+     * @param topic the topic filter
+     * @param device the subscribing device
+     */
+    public void subscribe(String topic, Device device) {
+        this.routes.subscribe(topic, device);
+        this.topicsByDevice.computeIfAbsent(device, d -> ConcurrentHashMap.newKeySet()).add(topic);
+        for (MQTTMessage message : this.retained.values()) {
+            if (TopicTrie.matches(topic, message.getTopic())) device.onMessage(message);
+        }
+    }
+
+    /**
+     * Unsubscribes the device from the topic filter
+     * @param topic the topic filter
+     * @param device the unsubscribing device
+     */
+    public void unsubscribe(String topic, Device device) {
+        Set<String> topics = this.topicsByDevice.get(device);
+        if (topics == null || !topics.remove(topic)) return;
+        this.routes.unsubscribe(topic, device);
+    }
+
+    /**
+     * Removes all the subscriptions of the device
+     * @param device the device
+     */
+    public void disconnect(Device device) {
+        Set<String> topics = this.topicsByDevice.remove(device);
+        if (topics == null) return;
+        for (String topic : topics) this.routes.unsubscribe(topic, device);
+    }
+
+    /**
+     * Publishes a message to all the devices subscribed to a matching filter
+     * @param topic where to publish
+     * @param payload the serialized message
+     * @param retain true to keep the message for future subscribers, an empty payload clears the retained message
+     */
+    public void publish(String topic, byte[] payload, boolean retain) {
+        this.published.incrementAndGet();
+        if (retain && payload.length == 0) {
+            this.retained.remove(topic);
+            return;
+        }
+        Set<Device> devices = receivers.get();
+        try {
+            this.routes.matchInto(topic, devices);
+            // Messages without subscribers are only parsed if they have to be retained
+            if (devices.isEmpty() && !retain) return;
+            MQTTMessage message;
+            try {
+                message = new MQTTMessage(topic, Message.parse(payload));
+            } catch (Exception e) {
+                Logger.warn("Loopback", "Error parsing message: " + e.getMessage());
+                return;
+            }
+            if (retain) this.retained.put(topic, message);
+            for (Device device : devices) device.onMessage(message);
+            this.delivered.addAndGet(devices.size());
+        } finally {
+            devices.clear();
+        }
+    }
+
+    /**
+     * @return the devices currently subscribed
+     */
+    public List<Device> getClients() {
+        return new ArrayList<>(this.topicsByDevice.keySet());
+    }
+
+    /**
+     * @return the number of messages published on the broker
+     */
+    public long getPublishedCount() {
+        return this.published.get();
+    }
+
+    /**
+     * @return the number of deliveries made to devices
+     */
+    public long getDeliveredCount() {
+        return this.delivered.get();
+    }
+
+    /**
+     * @return the number of retained messages
+     */
+    public int getRetainedCount() {
+        return this.retained.size();
+    }
+}
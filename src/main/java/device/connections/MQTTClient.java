@@ -1,33 +1,49 @@
 package main.java.device.connections;
 
 import main.java.device.Device;
+import main.java.device.runtime.StartupPhase;
+import main.java.utils.JsonWriter;
 import main.java.utils.Logger;
-import main.java.utils.MQTTMessage;
 import main.java.utils.Message;
-import org.eclipse.paho.client.mqttv3.*;
+import main.java.utils.WireFormat;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONObject;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * This class represents the MQTT Connection to the broker
+ * This class represents the MQTT Connection to the broker.
+ * The actual connection is made by the transport of Transports.getMqttProvider(), a real broker by default.
+ * Publishes are asynchronous and bounded by a publish window, so the device thread does not wait for the network.
+ * Messages are published with QoS 0 unless their type requires a delivery guarantee, es. accident alerts.
+ * Messages are encoded with the configured wire format, JSON unless set otherwise with the system property "smartcity.wire"
  */
-public class MQTTClient implements MqttCallback {
+public class MQTTClient {
+    private static final Map<String, Integer> qosByType = new ConcurrentHashMap<>(Map.of("ACCIDENT", 1));
 
     protected final Device myDevice;
     private final String address;
     private final String clientId;
-    private final MqttClient client;
+    private final Transport transport;
+    private final PublishWindow publishWindow;
+    private final ProducerSequences sequences;
+    private final ChangeFilter changeFilter = new ChangeFilter();
+    private volatile WireFormat wireFormat = WireFormat.getConfigured();
 
     public MQTTClient(Device mydevice, String brokerAddress) throws MqttException {
+        this(mydevice, brokerAddress, Transports.getMqttProvider());
+    }
+
+    public MQTTClient(Device mydevice, String brokerAddress, TransportProvider provider) throws MqttException {
         this.myDevice = mydevice;
         this.address = brokerAddress;
-        // Client id is the device id plus a random short UUID
         this.clientId = myDevice.getId() + "-MQTT";
-        this.client = new MqttClient(this.address, this.clientId);
-        MqttConnectOptions options = new MqttConnectOptions();
-        options.setCleanSession(true);
-        this.client.setCallback(this);
-        this.client.connect(options);
-        Logger.info(clientId, "Connected to broker at " + this.address);
+        this.transport = provider.connect(mydevice, brokerAddress, null, null);
+        this.publishWindow = new PublishWindow(this.clientId, this.transport::publishAsync);
+        this.transport.setConnectionListener(this.publishWindow);
+        this.sequences = new ProducerSequences(mydevice.getId());
     }
 
     /**
@@ -35,7 +51,10 @@ public class MQTTClient implements MqttCallback {
      * @param topic where to subscribe
      */
     public void subscribe(String topic) throws MqttException {
-        this.client.subscribe(topic);
+        long start = System.nanoTime();
+        this.transport.subscribe(topic);
+        // Only the subscriptions of the init are part of the startup, not es. the ones of a vehicle changing segment
+        if (!this.myDevice.isStarted()) StartupPhase.SUBSCRIBE.record(start);
         Logger.trace(clientId, "Subscribed to " + topic);
     }
 
@@ -44,7 +63,7 @@ public class MQTTClient implements MqttCallback {
      * @param topic where to unsubscribe
      */
     public void unsubscribe(String topic) throws MqttException {
-        this.client.unsubscribe(topic);
+        this.transport.unsubscribe(topic);
         Logger.trace(clientId, "Unsubscribed from " + topic);
     }
 
@@ -52,43 +71,115 @@ public class MQTTClient implements MqttCallback {
      * This method allows to publish a message to the specified topic
      * @param topic where to publish
      * @param payload the message to publish
+     * @return a future completed when the broker completes the publish
+     */
+    public CompletableFuture<Void> publish(String topic, JSONObject payload) throws MqttException {
+        String type = payload.optString("type", null);
+        int qos = getQos(type);
+        return publish(type, topic, new JsonWriter().value(payload).toByteArray(), qos, false);
+    }
+
+    /**
+     * This method allows to publish a message to the specified topic, encoded with the wire format of the client
+     * and stamped with the device as producer and the next sequence number of the topic
+     * @param topic where to publish
+     * @param message the message to publish
+     * @return a future completed when the broker completes the publish
+     */
+    public CompletableFuture<Void> publish(String topic, Message message) throws MqttException {
+        String type = message.getType();
+        byte[] payload = this.sequences.stamp(topic, message).encode(this.wireFormat);
+        return publish(type, topic, payload, getQos(type), false);
+    }
+
+    /**
+     * Publishes a message that represents a state (es. a traffic signal) only if it differs from the last one published
+     * on the topic, or if the heartbeat elapsed, when publish-on-change is enabled
+     * @param topic where to publish
+     * @param message the message to publish
+     * @return a future completed when the broker completes the publish, or right away if it is suppressed
      */
-    public void publish(String topic, JSONObject payload) throws MqttException {
-        this.client.publish(topic, payload.toString().getBytes(), 0, false);
+    public CompletableFuture<Void> publishOnChange(String topic, Message message) throws MqttException {
+        if (!ChangeFilter.isEnabled()) return publish(topic, message);
+        String type = message.getType();
+        long fingerprint = ChangeFilter.fingerprint(type, message.getMsgBytes());
+        if (!this.changeFilter.shouldPublish(topic, fingerprint)) return CompletableFuture.completedFuture(null);
+        byte[] payload = this.sequences.stamp(topic, message).encode(this.wireFormat);
+        CompletableFuture<Void> result = publish(type, topic, payload, getQos(type), ChangeFilter.isRetained());
+        result.whenComplete((ignored, error) -> {
+            if (error != null) this.changeFilter.failed(topic, fingerprint);
+        });
+        return result;
+    }
+
+    private CompletableFuture<Void> publish(String type, String topic, byte[] payload, int qos, boolean retained) {
+        CompletableFuture<Void> result = this.publishWindow.publish(type, topic, payload, qos, retained);
+        result.whenComplete((ignored, error) -> {
+            if (error != null) Logger.error(clientId, "Error publishing message: " + error.getMessage());
+        });
         Logger.trace(clientId, "Published message to " + topic);
+        return result;
     }
 
-    protected void disconnect() throws MqttException {
-        this.client.disconnect();
-        Logger.info(clientId, "Disconnected from broker");
+    /**
+     * @return the number of publishes suppressed because they repeated the last message of their topic
+     */
+    public long getSuppressedPublishes() {
+        return this.changeFilter.getSuppressedCount();
     }
 
-    protected void reconnect() throws MqttException {
-        this.client.reconnect();
-        Logger.info(clientId, "Reconnected to broker");
+    /**
+     * Sets how the messages published by the client are encoded
+     * @param wireFormat the wire format
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
     }
 
-    @Override
-    public void messageArrived(String s, MqttMessage mqttMessage) {
-        // Logger.debug(clientId, "Received message on " + s);
-        JSONObject payload;
-        try {
-            payload = new JSONObject(new String(mqttMessage.getPayload()));
-        } catch (Exception e) {
-            Logger.warn(clientId, "Error parsing message: " + e.getMessage());
-            return;
-        }
-        MQTTMessage message = new MQTTMessage(s, new Message(payload));
-        myDevice.onMessage(message);
+    /**
+     * @return how the messages published by the client are encoded
+     */
+    public WireFormat getWireFormat() {
+        return this.wireFormat;
+    }
+
+    /**
+     * Sets the quality of service of the messages of a type, for all the clients
+     * @param type the type of the messages, es. 'ACCIDENT'
+     * @param qos the MQTT quality of service, 0 or 1
+     */
+    public static void setQos(String type, int qos) {
+        qosByType.put(type, qos);
     }
 
-    @Override
-    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-        Logger.trace(clientId, "Message delivered");
+    /**
+     * @param type the type of the messages
+     * @return the quality of service the messages of the type are published with
+     */
+    public static int getQos(String type) {
+        return type == null ? 0 : qosByType.getOrDefault(type, 0);
     }
 
-    @Override
-    public void connectionLost(Throwable throwable) {
-        Logger.error(clientId, "Connection lost: " + throwable.getMessage());
+    /**
+     * @return the window bounding the publishes of the client
+     */
+    public PublishWindow getPublishWindow() {
+        return this.publishWindow;
+    }
+
+    public void disconnect() throws MqttException {
+        try {
+            // Give the pending publishes a chance to complete before closing
+            this.publishWindow.awaitEmpty(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.transport.disconnect();
+        Logger.info(clientId, "Disconnected from broker " + this.address);
+    }
+
+    protected void reconnect() throws MqttException {
+        this.transport.reconnect();
+        Logger.info(clientId, "Reconnected to broker " + this.address);
     }
 }
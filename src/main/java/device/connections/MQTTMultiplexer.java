@@ -0,0 +1,415 @@
+package main.java.device.connections;
+
+import main.java.device.Device;
+import main.java.utils.Logger;
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+import main.java.utils.MessageIds;
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class shares a few MQTT connections to a broker among all the devices of the process.
+ * Every device subscribes and publishes through one of the connections, so a message matching several of its filters
+ * is still delivered to it once. Subscriptions are reference counted by topic filter, so the broker only sees one
+ * subscription per filter and connection, and every inbound message is parsed once and then delivered in-process to
+ * all the interested devices of the connection.
+ * It is enabled with the system property "smartcity.mqtt.multiplex", the number of connections per broker is
+ * set with "smartcity.mqtt.connections". The connections are closed when the last device disconnects
+ */
+public class MQTTMultiplexer {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.mqtt.multiplex");
+    private static final Map<String, MQTTMultiplexer> multiplexers = new ConcurrentHashMap<>();
+
+    private final String address;
+    private final Connection[] connections;
+    private final Map<Device, Transport.ConnectionListener> listeners = new ConcurrentHashMap<>();
+    private int connectionsDown = 0;
+    private int devices = 0;
+
+    private MQTTMultiplexer(String address, int numberOfConnections) throws MqttException {
+        this.address = address;
+        this.connections = new Connection[Math.max(1, numberOfConnections)];
+        // The ids are stable across restarts when the node id is set, so a durable persistence is resumed
+        String prefix = "SmartCity-" + MessageIds.getNode();
+        for (int i = 0; i < this.connections.length; i++) {
+            this.connections[i] = new Connection(prefix + "-" + i);
+        }
+    }
+
+    /**
+     * @return true if the devices should share the connections of the multiplexer instead of opening their own
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the multiplexer for the connections created from now on
+     * @param enable true to share the connections among devices
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Returns the multiplexer of the given broker, connecting to it on first use
+     * @param brokerAddress the address of the broker
+     * @return the multiplexer
+     * @throws MqttException if the connections cannot be established
+     */
+    public static MQTTMultiplexer forBroker(String brokerAddress) throws MqttException {
+        MQTTMultiplexer multiplexer = multiplexers.get(brokerAddress);
+        if (multiplexer != null) return multiplexer;
+        synchronized (multiplexers) {
+            multiplexer = multiplexers.get(brokerAddress);
+            if (multiplexer == null) {
+                multiplexer = new MQTTMultiplexer(brokerAddress, Integer.getInteger("smartcity.mqtt.connections", 1));
+                multiplexers.put(brokerAddress, multiplexer);
+            }
+            return multiplexer;
+        }
+    }
+
+    /**
+     * Subscribes the device to the topic filter, the broker subscription is only made by the first device
+     * @param topic the topic filter
+     * @param device the subscribing device
+     */
+    public void subscribe(String topic, Device device) throws MqttException {
+        connectionFor(device).subscribe(topic, device);
+    }
+
+    /**
+     * Unsubscribes the device from the topic filter, the broker subscription is removed with the last device
+     * @param topic the topic filter
+     * @param device the unsubscribing device
+     */
+    public void unsubscribe(String topic, Device device) throws MqttException {
+        connectionFor(device).unsubscribe(topic, device);
+    }
+
+    /**
+     * Removes all the subscriptions of the device
+     * @param device the device
+     */
+    public void unsubscribeAll(Device device) throws MqttException {
+        Connection connection = connectionFor(device);
+        for (String topic : connection.topicsOf(device)) connection.unsubscribe(topic, device);
+    }
+
+    /**
+     * Publishes a message on one of the shared connections
+     * @param topic where to publish
+     * @param payload the message to publish
+     */
+    public void publish(String topic, byte[] payload) throws MqttException {
+        publish(topic, payload, 0, false);
+    }
+
+    /**
+     * Publishes a message on one of the shared connections
+     * @param topic where to publish
+     * @param payload the message to publish
+     * @param qos the MQTT quality of service
+     * @param retained true if the broker has to keep the message for future subscribers
+     */
+    public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        connectionFor(topic).publish(topic, payload, qos, retained);
+    }
+
+    /**
+     * Publishes a message on one of the shared connections without waiting for the broker
+     * @param topic where to publish
+     * @param payload the message to publish
+     * @param qos the MQTT quality of service
+     * @param retained true if the broker has to keep the message for future subscribers
+     * @return a future completed when the broker completes the publish
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        return connectionFor(topic).publishAsync(topic, payload, qos, retained);
+    }
+
+    /**
+     * Returns a transport that subscribes and publishes on behalf of the device through the shared connections.
+     * If the last device closed this multiplexer in the meantime, the device is opened on a new one
+     * @param device the device
+     * @return the transport of the device
+     * @throws MqttException if the connections of a new multiplexer cannot be established
+     */
+    public Transport open(Device device) throws MqttException {
+        // The device is counted under the same lock as release(), so it never gets connections being closed
+        synchronized (multiplexers) {
+            if (multiplexers.get(this.address) != this) return forBroker(this.address).open(device);
+            synchronized (this) {
+                this.devices++;
+            }
+        }
+        // The publishes of the device go through its own connection, so they keep their order
+        Connection connection = connectionFor(device);
+        return new Transport() {
+            @Override
+            public void subscribe(String topic) throws MqttException {
+                MQTTMultiplexer.this.subscribe(topic, device);
+            }
+
+            @Override
+            public void unsubscribe(String topic) throws MqttException {
+                MQTTMultiplexer.this.unsubscribe(topic, device);
+            }
+
+            @Override
+            public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+                connection.publish(topic, payload, qos, retained);
+            }
+
+            @Override
+            public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+                return connection.publishAsync(topic, payload, qos, retained);
+            }
+
+            @Override
+            public void disconnect() throws MqttException {
+                listeners.remove(device);
+                try {
+                    unsubscribeAll(device);
+                } finally {
+                    release();
+                }
+            }
+
+            @Override
+            public void setConnectionListener(ConnectionListener listener) {
+                listeners.put(device, listener);
+                synchronized (MQTTMultiplexer.this) {
+                    if (connectionsDown > 0) listener.connectionLost(null);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of distinct topic filters subscribed on the broker
+     */
+    public int getNumberOfSubscriptions() {
+        int count = 0;
+        for (Connection connection : this.connections) count += connection.subscriptions.size();
+        return count;
+    }
+
+    /**
+     * @return the number of devices using the multiplexer
+     */
+    public synchronized int getNumberOfDevices() {
+        return this.devices;
+    }
+
+    private void release() {
+        synchronized (multiplexers) {
+            synchronized (this) {
+                if (--this.devices > 0) return;
+            }
+            multiplexers.remove(this.address, this);
+        }
+        for (Connection connection : this.connections) connection.close();
+    }
+
+    /**
+     * The devices are told that the link is down as soon as one of the connections is lost, and that it is back
+     * once all of them are connected again
+     * @param up true if a connection was restored, false if it was lost
+     */
+    private synchronized void connectionChanged(boolean up, Throwable cause) {
+        int before = this.connectionsDown;
+        this.connectionsDown += up ? -1 : 1;
+        if (before == 0 && this.connectionsDown == 1) {
+            for (Transport.ConnectionListener listener : this.listeners.values()) listener.connectionLost(cause);
+        } else if (before == 1 && this.connectionsDown == 0) {
+            for (Transport.ConnectionListener listener : this.listeners.values()) listener.connectionRestored();
+        }
+    }
+
+    private Connection connectionFor(String topic) {
+        return this.connections[Math.floorMod(topic.hashCode(), this.connections.length)];
+    }
+
+    private Connection connectionFor(Device device) {
+        return this.connections[Math.floorMod(Objects.hashCode(device.getId()), this.connections.length)];
+    }
+
+    /**
+     * A single connection to the broker with the devices subscribed through it
+     */
+    private class Connection implements MqttCallback {
+        private final String clientId;
+        private final MqttAsyncClient client;
+        private final TopicTrie<Device> routes = new TopicTrie<>();
+        private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        private final Map<Device, Set<String>> topicsByDevice = new ConcurrentHashMap<>();
+        // The callback thread reuses the same set for every message, so the fan-out does not allocate
+        private final Set<Device> receivers = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final MqttConnectOptions options = new MqttConnectOptions();
+        private final Reconnector reconnector;
+        private volatile boolean closed = false;
+
+        Connection(String clientId) throws MqttException {
+            this.clientId = clientId;
+            PersistenceMode persistence = PersistenceMode.getConfigured();
+            this.client = new MqttAsyncClient(address, clientId, persistence.create());
+            this.options.setCleanSession(!persistence.isDurable());
+            // The connection carries the publishes of all the devices, each of them bounded by its own window
+            this.options.setMaxInflight(Integer.getInteger("smartcity.mqtt.inflight", 1000));
+            // The reconnector must exist before the first connection can be lost
+            this.reconnector = new Reconnector(clientId, (onSuccess, onFailure) ->
+                    this.client.connect(this.options, null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            onSuccess.run();
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable exception) {
+                            onFailure.accept(exception);
+                        }
+                    }));
+            this.reconnector.setOnReconnected(this::restore);
+            this.client.setCallback(this);
+            this.client.connect(this.options).waitForCompletion();
+            Logger.info(clientId, "Shared connection to broker at " + address);
+        }
+
+        private void restore() {
+            String[] topics = this.subscriptions.toArray(new String[0]);
+            IMqttActionListener replayed = new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    Logger.trace(clientId, "Replayed " + topics.length + " subscriptions");
+                    connectionChanged(true, null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    Logger.error(clientId, "Error replaying subscriptions: " + exception.getMessage());
+                    connectionChanged(true, null);
+                }
+            };
+            try {
+                if (topics.length == 0) connectionChanged(true, null);
+                else this.client.subscribe(topics, new int[topics.length], null, replayed);
+            } catch (MqttException e) {
+                replayed.onFailure(null, e);
+            }
+        }
+
+        synchronized void subscribe(String topic, Device device) throws MqttException {
+            boolean first = this.routes.subscribers(topic) == 0;
+            // Recorded first, so that a subscription made during an outage is replayed once reconnected
+            this.routes.subscribe(topic, device);
+            this.topicsByDevice.computeIfAbsent(device, d -> ConcurrentHashMap.newKeySet()).add(topic);
+            if (!first) return;
+            this.subscriptions.add(topic);
+            try {
+                this.client.subscribe(topic, 0).waitForCompletion();
+                Logger.trace(this.clientId, "Subscribed to " + topic);
+            } catch (MqttException e) {
+                if (this.client.isConnected()) {
+                    unsubscribe(topic, device);
+                    throw e;
+                }
+                Logger.warn(this.clientId, "Not connected, subscription to " + topic + " will be made once reconnected");
+            }
+        }
+
+        synchronized void unsubscribe(String topic, Device device) throws MqttException {
+            Set<String> topics = this.topicsByDevice.get(device);
+            if (topics == null || !topics.remove(topic)) return;
+            if (topics.isEmpty()) this.topicsByDevice.remove(device);
+            if (!this.routes.unsubscribe(topic, device)) return;
+            this.subscriptions.remove(topic);
+            try {
+                this.client.unsubscribe(topic).waitForCompletion();
+                Logger.trace(this.clientId, "Unsubscribed from " + topic);
+            } catch (MqttException e) {
+                // The subscription is no longer replayed once reconnected
+                if (this.client.isConnected()) throw e;
+            }
+        }
+
+        void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+            this.client.publish(topic, payload, qos, retained).waitForCompletion();
+        }
+
+        CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            this.client.publish(topic, payload, qos, retained, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    result.complete(null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    result.completeExceptionally(exception);
+                }
+            });
+            return result;
+        }
+
+        List<String> topicsOf(Device device) {
+            Set<String> topics = this.topicsByDevice.get(device);
+            return topics == null ? new ArrayList<>() : new ArrayList<>(topics);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage mqttMessage) {
+            MQTTMessage message;
+            try {
+                message = new MQTTMessage(topic, Message.parse(mqttMessage.getPayload()));
+            } catch (Exception e) {
+                Logger.warn(this.clientId, "Error parsing message: " + e.getMessage());
+                return;
+            }
+            // A device subscribed through several matching filters still receives the message once
+            try {
+                this.routes.matchInto(topic, this.receivers);
+                for (Device device : this.receivers) device.onMessage(message);
+            } finally {
+                this.receivers.clear();
+            }
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+            Logger.trace(this.clientId, "Message delivered");
+        }
+
+        @Override
+        public void connectionLost(Throwable throwable) {
+            if (this.closed) return;
+            Logger.error(this.clientId, "Connection lost: " + throwable.getMessage());
+            connectionChanged(false, throwable);
+            this.reconnector.start();
+        }
+
+        void close() {
+            this.closed = true;
+            this.reconnector.stop();
+            try {
+                if (this.client.isConnected()) this.client.disconnect().waitForCompletion();
+                this.client.close();
+                Logger.info(this.clientId, "Shared connection to broker closed");
+            } catch (MqttException e) {
+                Logger.error(this.clientId, "Error disconnecting from broker: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package main.java.device.connections;
+
+import main.java.utils.Logger;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents an append-only journal in a memory-mapped file, shared by the Paho clients of the process
+ * to persist their unacknowledged QoS 1 messages without a directory per client.
+ * Every put and remove is appended as a record, the live entries are also indexed in memory so reads never touch the
+ * file. The file is split in two regions, and a header tells which one is active: when the active region is full the
+ * live entries are compacted into the other one, which becomes active only once it is complete, so a crash during
+ * the compaction leaves the previous region untouched. On startup the journal is replayed,
+ * so the messages of a crashed process are found again by clients with the same id, which connect with a persistent
+ * session since Paho clears the persistence of a clean session.
+ * The file is set with the system property "smartcity.mqtt.journal", its size in MB with "smartcity.mqtt.journal.size"
+ * and "smartcity.mqtt.journal.sync" forces every record to the disk
+ */
+public class MappedJournal {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAGIC = 0x534A4E31;
+    // The magic number and the index of the active region
+    private static final int HEADER = 8;
+
+    private static MappedJournal shared;
+
+    private final String path;
+    private final MappedByteBuffer buffer;
+    private final boolean sync;
+    private final int regionSize;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int region = 0;
+    private int position = 0;
+
+    /**
+     * Opens the journal, creating the file if it does not exist, and replays its records
+     * @param path the path of the file
+     * @param capacity the size of the file in bytes, each region has half of it
+     * @param sync true to force every record to the disk
+     */
+    public MappedJournal(String path, int capacity, boolean sync) throws IOException {
+        this.path = path;
+        this.sync = sync;
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            if (file.length() < capacity) file.setLength(capacity);
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        this.regionSize = (capacity - HEADER) / 2;
+        if (this.buffer.getInt(0) == MAGIC) {
+            this.region = this.buffer.getInt(4) == 1 ? 1 : 0;
+            replay();
+        } else {
+            // A new file, or one not written by this version
+            this.buffer.putInt(base(0), 0);
+            this.buffer.putInt(4, 0);
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.force();
+        }
+        Logger.info("Journal", "Opened " + path + " with " + this.entries.size() + " pending messages");
+    }
+
+    /**
+     * Returns the journal of the process, opening it on first use
+     * @return the shared journal
+     */
+    public static synchronized MappedJournal getShared() {
+        if (shared == null) {
+            try {
+                shared = new MappedJournal(System.getProperty("smartcity.mqtt.journal", "smartcity-mqtt.journal"),
+                        Integer.getInteger("smartcity.mqtt.journal.size", 16) * 1024 * 1024,
+                        Boolean.getBoolean("smartcity.mqtt.journal.sync"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open the MQTT journal: " + e.getMessage(), e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return a new persistence for a Paho client, backed by this journal
+     */
+    public MqttClientPersistence newClientPersistence() {
+        return new ClientPersistence();
+    }
+
+    /**
+     * @return the number of messages in the journal not yet removed
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of bytes of the file used by records
+     */
+    public synchronized int getUsedBytes() {
+        return this.position;
+    }
+
+    private synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        byte[] header = copy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+        byte[] payload = copy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+        append(PUT, key, header, payload);
+        this.entries.put(key, new Entry(key, header, payload));
+    }
+
+    private synchronized MqttPersistable get(String key) {
+        return this.entries.get(key);
+    }
+
+    private synchronized void remove(String key) throws MqttPersistenceException {
+        if (this.entries.remove(key) == null) return;
+        append(REMOVE, key, null, null);
+    }
+
+    private synchronized List<String> keys(String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (String key : this.entries.keySet()) {
+            if (key.startsWith(prefix)) keys.add(key.substring(prefix.length()));
+        }
+        return keys;
+    }
+
+    private synchronized boolean containsKey(String key) {
+        return this.entries.containsKey(key);
+    }
+
+    private void append(byte operation, String key, byte[] header, byte[] payload) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + keyBytes.length + (operation == PUT ? 8 + header.length + payload.length : 0);
+        if (!fits(length)) {
+            compact();
+            // A remove does not need to be written after the compaction, the entry is already gone
+            if (operation == REMOVE) return;
+            if (!fits(length)) throw new MqttPersistenceException(new IOException("The journal " + this.path + " is full"));
+        }
+        write(operation, keyBytes, header, payload, length);
+        if (this.sync) this.buffer.force();
+    }
+
+    private boolean fits(int length) {
+        // There must be room for the record and for the end marker after it
+        return this.position + 4 + length + 4 <= this.regionSize;
+    }
+
+    /**
+     * @return the offset in the file of the start of a region
+     */
+    private int base(int region) {
+        return HEADER + region * this.regionSize;
+    }
+
+    private void write(byte operation, byte[] key, byte[] header, byte[] payload, int length) {
+        int base = base(this.region);
+        // The end marker is written before the length, so a partially written record is never replayed
+        this.buffer.putInt(base + this.position + 4 + length, 0);
+        this.buffer.position(base + this.position + 4);
+        this.buffer.put(operation);
+        this.buffer.putShort((short) key.length);
+        this.buffer.put(key);
+        if (operation == PUT) {
+            this.buffer.putInt(header.length);
+            this.buffer.put(header);
+            this.buffer.putInt(payload.length);
+            this.buffer.put(payload);
+        }
+        this.buffer.putInt(base + this.position, length);
+        this.position += 4 + length;
+    }
+
+    private void compact() {
+        int active = this.region;
+        // The live entries are written in the inactive region, the active one is kept as it is until the switch
+        this.region = 1 - active;
+        this.position = 0;
+        this.buffer.putInt(base(this.region), 0);
+        for (Entry entry : this.entries.values()) {
+            byte[] key = entry.key().getBytes(StandardCharsets.UTF_8);
+            write(PUT, key, entry.header(), entry.payload(), 1 + 2 + key.length + 8 + entry.header().length + entry.payload().length);
+        }
+        this.buffer.force();
+        // A single aligned write of the header switches the regions
+        this.buffer.putInt(4, this.region);
+        this.buffer.force();
+        Logger.trace("Journal", "Compacted " + this.path + " to " + this.entries.size() + " messages");
+    }
+
+    private void replay() {
+        int base = base(this.region);
+        while (this.position + 4 <= this.regionSize) {
+            int length = this.buffer.getInt(base + this.position);
+            if (length <= 0 || this.position + 4 + length > this.regionSize) break;
+            this.buffer.position(base + this.position + 4);
+            byte operation = this.buffer.get();
+            byte[] key = new byte[this.buffer.getShort()];
+            this.buffer.get(key);
+            String name = new String(key, StandardCharsets.UTF_8);
+            if (operation == PUT) {
+                byte[] header = new byte[this.buffer.getInt()];
+                this.buffer.get(header);
+                byte[] payload = new byte[this.buffer.getInt()];
+                this.buffer.get(payload);
+                this.entries.put(name, new Entry(name, header, payload));
+            } else {
+                this.entries.remove(name);
+            }
+            this.position += 4 + length;
+        }
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] result = new byte[bytes == null ? 0 : length];
+        if (bytes != null) System.arraycopy(bytes, offset, result, 0, length);
+        return result;
+    }
+
+    /**
+     * A live entry of the journal, with copies of the header and payload of the persisted message
+     */
+    private record Entry(String key, byte[] header, byte[] payload) implements MqttPersistable {
+        @Override
+        public byte[] getHeaderBytes() {
+            return this.header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return this.header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return this.payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return this.payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+
+    /**
+     * The view of the journal of a single client, its keys are prefixed with the client id
+     */
+    private class ClientPersistence implements MqttClientPersistence {
+        private String prefix;
+
+        @Override
+        public void open(String clientId, String serverURI) {
+            this.prefix = clientId + "@" + serverURI + "/";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+            MappedJournal.this.put(this.prefix + key, persistable);
+        }
+
+        @Override
+        public MqttPersistable get(String key) {
+            return MappedJournal.this.get(this.prefix + key);
+        }
+
+        @Override
+        public void remove(String key) throws MqttPersistenceException {
+            MappedJournal.this.remove(this.prefix + key);
+        }
+
+        @Override
+        public Enumeration<String> keys() {
+            return Collections.enumeration(MappedJournal.this.keys(this.prefix));
+        }
+
+        @Override
+        public void clear() throws MqttPersistenceException {
+            for (String key : MappedJournal.this.keys(this.prefix)) MappedJournal.this.remove(this.prefix + key);
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return MappedJournal.this.containsKey(this.prefix + key);
+        }
+    }
+}
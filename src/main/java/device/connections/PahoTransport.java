@@ -0,0 +1,174 @@
+package main.java.device.connections;
+
+import main.java.device.Device;
+import main.java.utils.Logger;
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * This class represents a dedicated connection of a device to an MQTT broker, through its own asynchronous Paho client.
+ * When the connection is lost it is retried with a jittered backoff and the active subscriptions are replayed
+ */
+public final class PahoTransport implements Transport, MqttCallback {
+    private final Device myDevice;
+    private final String address;
+    private final String clientId;
+    private final MqttAsyncClient client;
+    private final MqttConnectOptions options;
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Reconnector reconnector;
+    private volatile ConnectionListener listener;
+    private volatile boolean closed = false;
+
+    public PahoTransport(Device myDevice, String brokerAddress) throws MqttException {
+        this.myDevice = myDevice;
+        this.address = brokerAddress;
+        this.clientId = myDevice.getId() + "-MQTT";
+        PersistenceMode persistence = PersistenceMode.getConfigured();
+        this.client = new MqttAsyncClient(this.address, this.clientId, persistence.create());
+        this.options = new MqttConnectOptions();
+        // A clean session would discard the messages persisted by the previous client with the same id
+        this.options.setCleanSession(!persistence.isDurable());
+        // The publish window of the client already bounds the publishes in flight
+        this.options.setMaxInflight(Math.max(MqttConnectOptions.MAX_INFLIGHT_DEFAULT, Integer.getInteger("smartcity.publish.window", 32)));
+        // The reconnector must exist before the first connection can be lost
+        this.reconnector = new Reconnector(this.clientId, this::connectAsync);
+        this.reconnector.setOnReconnected(this::restore);
+        this.client.setCallback(this);
+        this.client.connect(this.options).waitForCompletion();
+        Logger.info(clientId, "Connected to broker at " + this.address);
+    }
+
+    @Override
+    public void subscribe(String topic) throws MqttException {
+        // Recorded first, so that a subscription made during an outage is replayed once reconnected
+        this.subscriptions.add(topic);
+        try {
+            this.client.subscribe(topic, 0).waitForCompletion();
+        } catch (MqttException e) {
+            if (this.client.isConnected()) {
+                this.subscriptions.remove(topic);
+                throw e;
+            }
+            Logger.warn(this.clientId, "Not connected, subscription to " + topic + " will be made once reconnected");
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic) throws MqttException {
+        this.subscriptions.remove(topic);
+        try {
+            this.client.unsubscribe(topic).waitForCompletion();
+        } catch (MqttException e) {
+            // Without a persistent session the broker already forgot the subscription, and it is no longer replayed
+            if (this.client.isConnected()) throw e;
+        }
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        this.client.publish(topic, payload, qos, retained).waitForCompletion();
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        this.client.publish(topic, payload, qos, retained, null, completing(result));
+        return result;
+    }
+
+    @Override
+    public void disconnect() throws MqttException {
+        this.closed = true;
+        if (this.client.isConnected()) this.client.disconnect().waitForCompletion();
+    }
+
+    @Override
+    public void setConnectionListener(ConnectionListener listener) {
+        this.listener = listener;
+        if (!this.client.isConnected()) listener.connectionLost(null);
+    }
+
+    @Override
+    public void reconnect() throws MqttException {
+        this.client.reconnect();
+    }
+
+    private void connectAsync(Runnable onSuccess, Consumer<Throwable> onFailure) throws MqttException {
+        if (this.closed) return;
+        this.client.connect(this.options, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                onSuccess.run();
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable exception) {
+                onFailure.accept(exception);
+            }
+        });
+    }
+
+    private void restore() {
+        String[] topics = this.subscriptions.toArray(new String[0]);
+        CompletableFuture<Void> replayed = new CompletableFuture<>();
+        try {
+            if (topics.length == 0) replayed.complete(null);
+            else this.client.subscribe(topics, new int[topics.length], null, completing(replayed));
+        } catch (MqttException e) {
+            replayed.completeExceptionally(e);
+        }
+        replayed.whenComplete((ignored, error) -> {
+            if (error != null) Logger.error(clientId, "Error replaying subscriptions: " + error.getMessage());
+            else Logger.trace(clientId, "Replayed " + topics.length + " subscriptions");
+            ConnectionListener current = this.listener;
+            if (current != null) current.connectionRestored();
+        });
+    }
+
+    private static IMqttActionListener completing(CompletableFuture<Void> result) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                result.complete(null);
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable exception) {
+                result.completeExceptionally(exception);
+            }
+        };
+    }
+
+    @Override
+    public void messageArrived(String s, MqttMessage mqttMessage) {
+        // Logger.debug(clientId, "Received message on " + s);
+        Message payload;
+        try {
+            payload = Message.parse(mqttMessage.getPayload());
+        } catch (Exception e) {
+            Logger.warn(clientId, "Error parsing message: " + e.getMessage());
+            return;
+        }
+        myDevice.onMessage(new MQTTMessage(s, payload));
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        Logger.trace(clientId, "Message delivered");
+    }
+
+    @Override
+    public void connectionLost(Throwable throwable) {
+        Logger.error(clientId, "Connection lost: " + throwable.getMessage());
+        ConnectionListener current = this.listener;
+        if (current != null) current.connectionLost(throwable);
+        this.reconnector.start();
+    }
+}
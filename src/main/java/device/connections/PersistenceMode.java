@@ -0,0 +1,71 @@
+package main.java.device.connections;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * This enum represents where the Paho clients keep the QoS 1 and 2 messages until the broker acknowledges them.
+ * QoS 0 messages are never persisted, so they do not depend on the mode.
+ * The messages kept on disk are only found again by a client with the same id, so with a durable mode the shared
+ * connections must be given a stable node id with the system property "smartcity.node".
+ * It is chosen with the system property "smartcity.mqtt.persistence"
+ */
+public enum PersistenceMode {
+    /**
+     * Messages are kept in the memory of the client, they are lost if the process dies
+     */
+    MEMORY,
+    /**
+     * Every client keeps its messages in its own directory under the working directory, the Paho default
+     */
+    FILE,
+    /**
+     * All the clients of the process append their messages to the same memory-mapped journal file
+     */
+    JOURNAL;
+
+    private static final PersistenceMode configured = get(System.getProperty("smartcity.mqtt.persistence"));
+
+    /**
+     * Creates the persistence of a new client
+     * @return the persistence, not yet opened
+     */
+    public MqttClientPersistence create() {
+        return switch (this) {
+            case MEMORY -> new MemoryPersistence();
+            case FILE -> new MqttDefaultFilePersistence();
+            case JOURNAL -> MappedJournal.getShared().newClientPersistence();
+        };
+    }
+
+    /**
+     * Tells if the messages outlive the process. Paho clears the persistence of a client at every clean session
+     * connect, so the clients of a durable mode connect with a persistent session, resumed by the next client with
+     * the same id
+     * @return true if the messages are kept on disk
+     */
+    public boolean isDurable() {
+        return this != MEMORY;
+    }
+
+    /**
+     * @return the mode set with the system property, MEMORY if not set
+     */
+    public static PersistenceMode getConfigured() {
+        return configured;
+    }
+
+    /**
+     * Parses the persistence mode from its name, case insensitive
+     * @param name the name of the mode, if null or unknown the memory mode is returned
+     * @return the persistence mode
+     */
+    public static PersistenceMode get(String name) {
+        if (name == null || name.isEmpty()) return MEMORY;
+        for (PersistenceMode mode : PersistenceMode.values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return MEMORY;
+    }
+}
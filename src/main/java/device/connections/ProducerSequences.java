@@ -0,0 +1,36 @@
+package main.java.device.connections;
+
+import main.java.utils.Message;
+import main.java.utils.MessageIds;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stamps the messages published by a client with the id of its device and a sequence number, counted
+ * separately for every topic, so that every subscriber sees the numbers of a producer increase one by one.
+ * The producer is the device id followed by a session id unique to the client, es. 'V1#k3x9q1z-4', so that a device
+ * recreated with the same id starts a new stream from 1 instead of being taken for stale by the subscribers.
+ * A forwarded message is stamped again by the forwarding device, which becomes its producer on the new topic
+ */
+class ProducerSequences {
+    private final String producer;
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+
+    /**
+     * @param deviceId the id of the device of the client
+     */
+    ProducerSequences(String deviceId) {
+        this.producer = deviceId + "#" + MessageIds.next();
+    }
+
+    /**
+     * @param topic the topic where the message is published
+     * @param message the message
+     * @return a copy of the message with the next sequence number of the topic
+     */
+    Message stamp(String topic, Message message) {
+        return message.withSequence(this.producer, this.sequences.computeIfAbsent(topic, t -> new AtomicLong()).incrementAndGet());
+    }
+}
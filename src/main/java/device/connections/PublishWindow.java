@@ -0,0 +1,418 @@
+package main.java.device.connections;
+
+import main.java.utils.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits the number of publishes of a client that are waiting for the broker to complete them.
+ * Publishes are handed to the asynchronous sender while the window has room, the next ones wait in a bounded
+ * backlog and are sent as soon as a previous publish completes. When also the backlog is full the overflow
+ * policy decides whether the caller waits, the oldest waiting publish is dropped or the new one fails.
+ * The default configuration is read from the system properties "smartcity.publish.window",
+ * "smartcity.publish.backlog" and "smartcity.publish.overflow" (block, drop_oldest or fail).
+ * While the connection is down the publishes are kept in a bounded outage buffer instead, whose overflow policy
+ * depends on the type of the message, and are flushed in batches of "smartcity.publish.flushBatch" once the
+ * connection is back. An outage may last long, so a publish never waits for room in the outage buffer: with the BLOCK
+ * policy it evicts the oldest buffered publish whose type may be dropped, and fails if there is none.
+ * The size of the outage buffer is set with "smartcity.publish.outageBuffer"
+ */
+public class PublishWindow implements Transport.ConnectionListener {
+    /**
+     * What to do with a publish when both the window and the backlog are full
+     */
+    public enum OverflowPolicy {
+        /**
+         * The publishing thread waits until there is room in the backlog
+         */
+        BLOCK,
+        /**
+         * The oldest publish of the backlog is dropped to make room
+         */
+        DROP_OLDEST,
+        /**
+         * The new publish fails immediately
+         */
+        FAIL;
+
+        /**
+         * Parses the name of a policy, case insensitive
+         * @param name the name of the policy, es. 'drop_oldest' or 'drop-oldest'
+         * @return the policy, BLOCK if the name is null or empty
+         */
+        public static OverflowPolicy get(String name) {
+            if (name == null || name.isEmpty()) return BLOCK;
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * The asynchronous operation that actually sends a publish
+     */
+    @FunctionalInterface
+    public interface Sender {
+        CompletableFuture<Void> send(String topic, byte[] payload, int qos, boolean retained) throws MqttException;
+    }
+
+    // Accident alerts evict other buffered messages rather than being lost, other messages make room by dropping the oldest
+    private static final Map<String, OverflowPolicy> outagePolicies = new ConcurrentHashMap<>(Map.of("ACCIDENT", OverflowPolicy.BLOCK));
+    private static final OverflowPolicy DEFAULT_OUTAGE_POLICY = OverflowPolicy.DROP_OLDEST;
+
+    private final String clientId;
+    private final Sender sender;
+    private final int maxInFlight;
+    private final int backlogCapacity;
+    private volatile OverflowPolicy policy;
+
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private int inFlight = 0;
+    private final ArrayDeque<Pending> outage = new ArrayDeque<>();
+    private final int outageCapacity = Math.max(1, Integer.getInteger("smartcity.publish.outageBuffer", 1024));
+    private final int flushBatch = Math.max(1, Integer.getInteger("smartcity.publish.flushBatch", 64));
+    private boolean paused = false;
+    private boolean flushing = false;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * Creates a window configured with the system properties
+     * @param clientId the id of the client, used for logging
+     * @param sender the asynchronous sender
+     */
+    public PublishWindow(String clientId, Sender sender) {
+        this(clientId, sender,
+                Integer.getInteger("smartcity.publish.window", 32),
+                Integer.getInteger("smartcity.publish.backlog", 256),
+                OverflowPolicy.get(System.getProperty("smartcity.publish.overflow")));
+    }
+
+    /**
+     * @param clientId the id of the client, used for logging
+     * @param sender the asynchronous sender
+     * @param maxInFlight the maximum number of publishes sent and not yet completed
+     * @param backlogCapacity the maximum number of publishes waiting for room in the window
+     * @param policy what to do when the backlog is full
+     */
+    public PublishWindow(String clientId, Sender sender, int maxInFlight, int backlogCapacity, OverflowPolicy policy) {
+        this.clientId = clientId;
+        this.sender = sender;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.backlogCapacity = Math.max(1, backlogCapacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Publishes a message without waiting for the broker
+     * @param topic where to publish
+     * @param payload the serialized message
+     * @param qos the MQTT quality of service
+     * @param retained true if the broker has to keep the message for future subscribers
+     * @return a future completed when the broker completes the publish, or exceptionally if it fails or is dropped
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos, boolean retained) {
+        return publish(null, topic, payload, qos, retained);
+    }
+
+    /**
+     * Publishes a message without waiting for the broker
+     * @param type the type of the message, it chooses the overflow policy while the connection is down
+     * @param topic where to publish
+     * @param payload the serialized message
+     * @param qos the MQTT quality of service
+     * @param retained true if the broker has to keep the message for future subscribers
+     * @return a future completed when the broker completes the publish, or exceptionally if it fails or is dropped
+     */
+    public CompletableFuture<Void> publish(String type, String topic, byte[] payload, int qos, boolean retained) {
+        Pending pending = new Pending(type, topic, payload, qos, retained);
+        synchronized (this) {
+            // Until the outage buffer is flushed new publishes queue behind it, so the order is kept
+            if (this.paused || this.flushing) return buffer(pending);
+        }
+        return submit(pending, this.policy);
+    }
+
+    private CompletableFuture<Void> submit(Pending pending, OverflowPolicy overflowPolicy) {
+        synchronized (this) {
+            while (true) {
+                // A new publish only skips the backlog if it is empty, so it never overtakes the waiting ones
+                if (this.inFlight < this.maxInFlight && this.backlog.isEmpty()) {
+                    this.inFlight++;
+                    break;
+                }
+                if (this.backlog.size() < this.backlogCapacity) {
+                    this.backlog.add(pending);
+                    return pending.future;
+                }
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return fail(pending, e);
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        drop(this.backlog.poll());
+                        break;
+                    case FAIL:
+                        return fail(pending, new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+                }
+            }
+        }
+        send(pending);
+        return pending.future;
+    }
+
+    private CompletableFuture<Void> buffer(Pending pending) {
+        // Called holding the lock
+        while (this.outage.size() >= this.outageCapacity) {
+            switch (getOutagePolicy(pending.type)) {
+                case BLOCK:
+                    // The caller is the thread of a device, it must not be parked for the whole outage
+                    Pending droppable = oldestDroppable();
+                    if (droppable == null) return fail(pending, new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+                    this.outage.remove(droppable);
+                    drop(droppable);
+                    break;
+                case DROP_OLDEST:
+                    drop(this.outage.poll());
+                    break;
+                case FAIL:
+                    return fail(pending, new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+            }
+        }
+        this.outage.add(pending);
+        this.buffered.incrementAndGet();
+        return pending.future;
+    }
+
+    private Pending oldestDroppable() {
+        // Called holding the lock
+        for (Pending buffered : this.outage) {
+            if (getOutagePolicy(buffered.type) != OverflowPolicy.BLOCK) return buffered;
+        }
+        return null;
+    }
+
+    private void drop(Pending oldest) {
+        this.dropped.incrementAndGet();
+        oldest.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+        Logger.trace(this.clientId, "Dropped publish to " + oldest.topic);
+    }
+
+    /**
+     * Stops sending, the next publishes are kept in the outage buffer
+     * @param cause the reason why the connection was lost
+     */
+    @Override
+    public synchronized void connectionLost(Throwable cause) {
+        this.paused = true;
+        // The publishes not yet sent would fail on the dead connection, they go ahead of the buffered ones
+        while (!this.backlog.isEmpty()) this.outage.addFirst(this.backlog.pollLast());
+    }
+
+    /**
+     * Starts flushing the outage buffer, in batches, on a separate thread
+     */
+    @Override
+    public void connectionRestored() {
+        synchronized (this) {
+            this.paused = false;
+            if (this.flushing) return;
+            this.flushing = true;
+            notifyAll();
+        }
+        Thread.ofVirtual().name(this.clientId + "-flush").start(this::flush);
+    }
+
+    private void flush() {
+        long count = 0;
+        while (true) {
+            List<Pending> batch = new ArrayList<>(this.flushBatch);
+            synchronized (this) {
+                if (this.paused) {
+                    // Lost again, the rest is flushed at the next reconnection
+                    this.flushing = false;
+                    break;
+                }
+                while (batch.size() < this.flushBatch && !this.outage.isEmpty()) batch.add(this.outage.poll());
+                if (batch.isEmpty()) {
+                    this.flushing = false;
+                    notifyAll();
+                    break;
+                }
+                // Publishers blocked on a full outage buffer can go on
+                notifyAll();
+            }
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[batch.size()];
+            for (int i = 0; i < futures.length; i++) futures[i] = submit(batch.get(i), OverflowPolicy.BLOCK);
+            count += futures.length;
+            this.flushed.addAndGet(futures.length);
+            // The next batch is sent once the broker has completed this one
+            CompletableFuture.allOf(futures).exceptionally(error -> null).join();
+        }
+        if (count > 0) Logger.info(this.clientId, "Flushed " + count + " publishes buffered while disconnected");
+    }
+
+    /**
+     * Waits until all the publishes of the window and of the backlog are completed
+     * @param timeoutMs the maximum time to wait in milliseconds
+     * @return true if nothing is left to send
+     */
+    public synchronized boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.inFlight > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private CompletableFuture<Void> fail(Pending pending, Exception cause) {
+        this.failed.incrementAndGet();
+        pending.future.completeExceptionally(cause);
+        return pending.future;
+    }
+
+    private void send(Pending pending) {
+        CompletableFuture<Void> result;
+        try {
+            result = this.sender.send(pending.topic, pending.payload, pending.qos, pending.retained);
+        } catch (Exception e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((ignored, error) -> onComplete(pending, error));
+    }
+
+    private void onComplete(Pending pending, Throwable error) {
+        if (error == null) {
+            this.completed.incrementAndGet();
+            pending.future.complete(null);
+        } else {
+            this.failed.incrementAndGet();
+            pending.future.completeExceptionally(error);
+        }
+        Pending next;
+        synchronized (this) {
+            // The slot passes to the oldest publish of the backlog, if any
+            next = this.backlog.poll();
+            if (next == null) this.inFlight--;
+            notifyAll();
+        }
+        if (next != null) send(next);
+    }
+
+    /**
+     * Sets the overflow policy of the outage buffer for the messages of a type, for all the clients
+     * @param type the type of the messages, es. 'TRAFFIC'
+     * @param policy what to do with a message of the type when the outage buffer is full, BLOCK evicts the oldest
+     *               buffered message of a type that may be dropped
+     */
+    public static void setOutagePolicy(String type, OverflowPolicy policy) {
+        outagePolicies.put(type, policy);
+    }
+
+    /**
+     * @param type the type of the messages, it can be null
+     * @return the overflow policy of the outage buffer for the messages of the type
+     */
+    public static OverflowPolicy getOutagePolicy(String type) {
+        return type == null ? DEFAULT_OUTAGE_POLICY : outagePolicies.getOrDefault(type, DEFAULT_OUTAGE_POLICY);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.policy;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * @return the number of publishes sent and not yet completed
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * @return the number of publishes waiting for room in the window
+     */
+    public synchronized int getBacklog() {
+        return this.backlog.size();
+    }
+
+    /**
+     * @return true if the connection is down and publishes are being buffered
+     */
+    public synchronized boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * @return the number of publishes in the outage buffer
+     */
+    public synchronized int getOutageBuffer() {
+        return this.outage.size();
+    }
+
+    /**
+     * @return the number of publishes buffered while the connection was down
+     */
+    public long getBufferedCount() {
+        return this.buffered.get();
+    }
+
+    /**
+     * @return the number of buffered publishes sent after the connection was back
+     */
+    public long getFlushedCount() {
+        return this.flushed.get();
+    }
+
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    private static class Pending {
+        private final String type;
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(String type, String topic, byte[] payload, int qos, boolean retained) {
+            this.type = type;
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+        }
+    }
+}
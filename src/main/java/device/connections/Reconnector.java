@@ -0,0 +1,121 @@
+package main.java.device.connections;
+
+import main.java.device.runtime.TimingWheel;
+import main.java.utils.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * This class retries a lost connection with an exponential backoff, until an attempt succeeds.
+ * Every delay is picked at random between half and the whole of the current backoff, so the clients of a fleet that
+ * lost the broker at the same time do not come back all together.
+ * Attempts are scheduled on the shared timing wheel, hence they must not block. The backoff starts from
+ * "smartcity.reconnect.base" milliseconds and never exceeds "smartcity.reconnect.max"
+ */
+public class Reconnector {
+    /**
+     * A single non-blocking connection attempt, which reports its outcome through one of the callbacks
+     */
+    @FunctionalInterface
+    public interface Attempt {
+        void connect(Runnable onSuccess, Consumer<Throwable> onFailure) throws Exception;
+    }
+
+    private final String clientId;
+    private final Attempt attempt;
+    private final long baseMs;
+    private final long maxMs;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile int attempts = 0;
+    private volatile Runnable onReconnected = () -> {};
+
+    public Reconnector(String clientId, Attempt attempt) {
+        this(clientId, attempt, Long.getLong("smartcity.reconnect.base", 500), Long.getLong("smartcity.reconnect.max", 30000));
+    }
+
+    /**
+     * @param clientId the id of the client, used for logging
+     * @param attempt the connection attempt
+     * @param baseMs the backoff of the first attempt in milliseconds
+     * @param maxMs the maximum backoff in milliseconds
+     */
+    public Reconnector(String clientId, Attempt attempt, long baseMs, long maxMs) {
+        this.clientId = clientId;
+        this.attempt = attempt;
+        this.baseMs = Math.max(1, baseMs);
+        this.maxMs = Math.max(this.baseMs, maxMs);
+    }
+
+    /**
+     * Sets the task run once the connection is established again, es. to replay the subscriptions
+     * @param onReconnected the task
+     */
+    public void setOnReconnected(Runnable onReconnected) {
+        this.onReconnected = onReconnected;
+    }
+
+    /**
+     * Starts retrying the connection, it does nothing if it is already retrying
+     */
+    public void start() {
+        if (!this.running.compareAndSet(false, true)) return;
+        this.attempts = 0;
+        scheduleNext();
+    }
+
+    /**
+     * Stops retrying, es. because the connection was closed on purpose
+     */
+    public void stop() {
+        this.running.set(false);
+    }
+
+    /**
+     * @return true if the connection is being retried
+     */
+    public boolean isRunning() {
+        return this.running.get();
+    }
+
+    /**
+     * @return the number of attempts made since the connection was lost
+     */
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    private void scheduleNext() {
+        long delay = nextDelay();
+        Logger.trace(this.clientId, "Reconnecting in " + delay + " ms");
+        TimingWheel.getShared().schedule(delay, this::tryConnect);
+    }
+
+    private long nextDelay() {
+        long backoff = Math.min(this.maxMs, this.baseMs << Math.min(this.attempts, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private void tryConnect() {
+        if (!this.running.get()) return;
+        this.attempts++;
+        try {
+            this.attempt.connect(this::connected, this::failed);
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    private void connected() {
+        if (!this.running.compareAndSet(true, false)) return;
+        Logger.info(this.clientId, "Reconnected after " + this.attempts + " attempts");
+        this.onReconnected.run();
+    }
+
+    private void failed(Throwable cause) {
+        if (!this.running.get()) return;
+        Logger.warn(this.clientId, "Reconnection attempt " + this.attempts + " failed: " + (cause == null ? "unknown error" : cause.getMessage()));
+        scheduleNext();
+    }
+}
@@ -0,0 +1,359 @@
+package main.java.device.connections;
+
+import main.java.device.runtime.TimingWheel;
+import main.java.utils.JsonWriter;
+import main.java.utils.Logger;
+import main.java.utils.Message;
+import main.java.utils.MessageIds;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class coalesces the status that the devices of the process report to AWS at every step (es. 'vehicles/<id>/status')
+ * and uploads it periodically, sending for every device only the fields changed since the last state acknowledged by AWS.
+ * The changes of all the devices sharing the same AWS credentials are batched in TELEMETRY documents published on
+ * 'telemetry/<node>/status' with QoS 1, every entry carrying the topic of the device, the version its changes apply
+ * to ("base") and the new version, so that a missed document can be detected by a gap in the versions. A full state is
+ * sent every few uploads of a device, and always as its first one, so that a receiver can resynchronize.
+ * Every upload of a device gets a new version, and if a document is not acknowledged the next upload of its devices is
+ * a full state, since AWS may have received it anyway. A document is published with a connected client of the group.
+ * It is enabled with the system property "smartcity.telemetry.uplink", the upload period in milliseconds is set with
+ * "smartcity.telemetry.flush", the maximum number of devices per document with "smartcity.telemetry.batch" and the number
+ * of uploads between full states with "smartcity.telemetry.keyframe"
+ */
+public class TelemetryUplink {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.telemetry.uplink");
+    private static TelemetryUplink shared;
+
+    private final String topic;
+    private final long flushMs;
+    private final int maxBatch;
+    private final int keyframeInterval;
+    private final Map<String, Stream> streams = new LinkedHashMap<>();
+    private final ReentrantLock flushing = new ReentrantLock();
+    private TimingWheel.Timeout timer;
+
+    private long updates = 0;
+    private long unchangedUpdates = 0;
+    private long documents = 0;
+    private long entries = 0;
+    private long failedDocuments = 0;
+    private long rawBytes = 0;
+    private long sentBytes = 0;
+    private long lagNanos = 0;
+    private long maxLagNanos = 0;
+
+    /**
+     * @param topic the topic where the documents are published
+     * @param flushMs the period of the uploads in milliseconds
+     * @param maxBatch the maximum number of devices per document
+     * @param keyframeInterval the number of uploads of a device between two full states
+     */
+    public TelemetryUplink(String topic, long flushMs, int maxBatch, int keyframeInterval) {
+        this.topic = topic;
+        this.flushMs = Math.max(1, flushMs);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Enables or disables the uplink for the status published from now on
+     * @param enable true to upload the status through the uplink
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * @return true if the status of the devices is uploaded through the uplink
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the uplink of the process, creating it and starting its uploads on the first call
+     * @return the uplink
+     */
+    public static synchronized TelemetryUplink getShared() {
+        if (shared == null) {
+            shared = new TelemetryUplink("telemetry/" + MessageIds.getNode() + "/status",
+                    Long.getLong("smartcity.telemetry.flush", 1000),
+                    Integer.getInteger("smartcity.telemetry.batch", 50),
+                    Integer.getInteger("smartcity.telemetry.keyframe", 30));
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Starts uploading periodically on the shared timing wheel
+     */
+    public synchronized void start() {
+        if (this.timer != null) return;
+        // Publishing may block on a full publish window, so the upload is not run on the ticker thread
+        this.timer = TimingWheel.getShared().scheduleAtFixedRate(this.flushMs, this.flushMs,
+                () -> Thread.ofVirtual().name("telemetry-flush").start(this::flush));
+    }
+
+    /**
+     * Stops the periodic uploads, the pending changes are uploaded one last time once the running upload, if any, is over
+     */
+    public void stop() {
+        synchronized (this) {
+            if (this.timer != null) this.timer.cancel();
+            this.timer = null;
+        }
+        this.flushing.lock();
+        try {
+            upload();
+        } finally {
+            this.flushing.unlock();
+        }
+    }
+
+    /**
+     * Replaces the status of a device, uploaded with the next flush if it changed
+     * @param client the AWS client of the device, used to publish the documents
+     * @param statusTopic the topic where the device would publish its status, es. 'vehicles/<id>/status'
+     * @param status the status, it must not be modified afterwards
+     */
+    public void update(AWSClient client, String statusTopic, JSONObject status) {
+        int size = new JsonWriter(64).value(status).size();
+        synchronized (this) {
+            this.updates++;
+            this.rawBytes += size;
+            Stream stream = this.streams.computeIfAbsent(statusTopic, t -> new Stream(client, t));
+            if (sameFields(stream.latest, status)) {
+                this.unchangedUpdates++;
+                return;
+            }
+            stream.latest = status;
+            if (stream.pendingSince == 0) stream.pendingSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Forgets the status of all the devices of a client, es. when it disconnects
+     * @param client the AWS client
+     */
+    public synchronized void forget(AWSClient client) {
+        this.streams.values().removeIf(stream -> stream.client == client);
+    }
+
+    /**
+     * Uploads the changes of the devices that are not waiting for the acknowledgement of a previous upload,
+     * it does nothing if an upload is already running
+     */
+    public void flush() {
+        if (!this.flushing.tryLock()) return;
+        try {
+            upload();
+        } finally {
+            this.flushing.unlock();
+        }
+    }
+
+    private void upload() {
+        for (Batch batch : collect()) publish(batch);
+    }
+
+    private synchronized List<Batch> collect() {
+        long now = System.nanoTime();
+        Map<String, List<Batch>> batches = new HashMap<>();
+        List<Batch> result = new ArrayList<>();
+        for (Stream stream : this.streams.values()) {
+            if (stream.pendingSince == 0 || stream.inFlight != null) continue;
+            JSONObject entry = stream.delta(now);
+            if (entry == null) continue;
+            // Devices with the same credentials have the same permissions, so any of them can publish for the others
+            List<Batch> group = batches.computeIfAbsent(stream.client.getCredentialsKey(), key -> new ArrayList<>());
+            Batch batch = group.isEmpty() ? null : group.get(group.size() - 1);
+            if (batch == null || batch.streams.size() >= this.maxBatch) {
+                batch = new Batch(stream.client);
+                group.add(batch);
+                result.add(batch);
+            }
+            batch.streams.add(stream);
+            batch.entries.put(entry);
+            if (!batch.client.isConnected() && stream.client.isConnected()) batch.client = stream.client;
+        }
+        return result;
+    }
+
+    private void publish(Batch batch) {
+        Message message = Message.createTelemetry(batch.entries);
+        synchronized (this) {
+            this.documents++;
+            this.entries += batch.streams.size();
+            this.sentBytes += message.toJsonBytes().length;
+        }
+        batch.client.publish(this.topic, message, 1).whenComplete((ignored, error) -> acknowledged(batch, error == null));
+    }
+
+    private synchronized void acknowledged(Batch batch, boolean success) {
+        if (!success) this.failedDocuments++;
+        for (Stream stream : batch.streams) stream.acknowledged(success);
+    }
+
+    private static boolean sameFields(JSONObject a, JSONObject b) {
+        if (a == null || b == null) return a == b;
+        if (a.length() != b.length()) return false;
+        for (String key : a.keySet()) {
+            if (!Objects.equals(a.opt(key), b.opt(key))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of status updates received from the devices
+     */
+    public synchronized long getUpdates() {
+        return this.updates;
+    }
+
+    /**
+     * @return the number of status updates equal to the previous one of their device
+     */
+    public synchronized long getUnchangedUpdates() {
+        return this.unchangedUpdates;
+    }
+
+    /**
+     * @return the number of documents published
+     */
+    public synchronized long getDocuments() {
+        return this.documents;
+    }
+
+    /**
+     * @return the number of documents not acknowledged by AWS
+     */
+    public synchronized long getFailedDocuments() {
+        return this.failedDocuments;
+    }
+
+    /**
+     * @return the average number of devices per document
+     */
+    public synchronized double getAverageBatchSize() {
+        return this.documents == 0 ? 0 : (double) this.entries / this.documents;
+    }
+
+    /**
+     * @return the bytes of all the status updates, as the devices would have published them, divided by the bytes published
+     */
+    public synchronized double getCompressionRatio() {
+        return this.sentBytes == 0 ? 0 : (double) this.rawBytes / this.sentBytes;
+    }
+
+    /**
+     * @return the average time in milliseconds between the first change of a device and its upload
+     */
+    public synchronized double getAverageLagMs() {
+        return this.entries == 0 ? 0 : this.lagNanos / 1e6 / this.entries;
+    }
+
+    /**
+     * @return the maximum time in milliseconds between the first change of a device and its upload
+     */
+    public synchronized double getMaxLagMs() {
+        return this.maxLagNanos / 1e6;
+    }
+
+    /**
+     * The entries published in one document, with the client publishing it
+     */
+    private static class Batch {
+        AWSClient client;
+        final List<Stream> streams = new ArrayList<>();
+        final JSONArray entries = new JSONArray();
+
+        Batch(AWSClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * The status of a device, with the last state acknowledged by AWS and the one waiting for the acknowledgement
+     */
+    private class Stream {
+        final AWSClient client;
+        final String statusTopic;
+        JSONObject latest;
+        JSONObject acked;
+        JSONObject inFlight;
+        long ackedVersion = 0;
+        long lastVersion = 0;
+        long inFlightVersion = 0;
+        long inFlightPendingSince = 0;
+        long pendingSince = 0;
+        int uploadsSinceKeyframe = 0;
+
+        Stream(AWSClient client, String statusTopic) {
+            this.client = client;
+            this.statusTopic = statusTopic;
+        }
+
+        /**
+         * Builds the entry of the document with the changes since the acknowledged state and marks it in flight
+         * @param now the current time in nanoseconds
+         * @return the entry, null if nothing changed since the acknowledged state
+         */
+        JSONObject delta(long now) {
+            boolean full = this.acked == null || this.uploadsSinceKeyframe >= keyframeInterval;
+            JSONObject fields = new JSONObject();
+            for (String key : this.latest.keySet()) {
+                Object value = this.latest.opt(key);
+                if (full || !Objects.equals(value, this.acked.opt(key))) fields.put(key, value);
+            }
+            JSONArray removed = new JSONArray();
+            if (!full) {
+                for (String key : this.acked.keySet()) if (!this.latest.has(key)) removed.put(key);
+            }
+            if (!full && fields.isEmpty() && removed.isEmpty()) {
+                // The status changed back to the acknowledged one
+                this.pendingSince = 0;
+                return null;
+            }
+
+            JSONObject entry = new JSONObject();
+            entry.put("topic", this.statusTopic);
+            entry.put("base", full ? 0 : this.ackedVersion);
+            entry.put("version", ++this.lastVersion);
+            entry.put(full ? "state" : "changes", fields);
+            if (!removed.isEmpty()) entry.put("removed", removed);
+
+            long lag = now - this.pendingSince;
+            lagNanos += lag;
+            maxLagNanos = Math.max(maxLagNanos, lag);
+            this.uploadsSinceKeyframe = full ? 0 : this.uploadsSinceKeyframe + 1;
+            this.inFlight = this.latest;
+            this.inFlightVersion = this.lastVersion;
+            this.inFlightPendingSince = this.pendingSince;
+            this.pendingSince = 0;
+            return entry;
+        }
+
+        void acknowledged(boolean success) {
+            if (success) {
+                this.acked = this.inFlight;
+                this.ackedVersion = this.inFlightVersion;
+            } else {
+                // AWS may have received the document anyway, so the next upload is a full state with a new version
+                this.acked = null;
+                if (this.pendingSince == 0) this.pendingSince = this.inFlightPendingSince;
+                Logger.warn("TelemetryUplink", "Status of " + this.statusTopic + " not acknowledged, it will be sent again");
+            }
+            this.inFlight = null;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package main.java.device.connections;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Trie of MQTT topic filters, with the semantics of the + (single level) and # (multi level) wildcards.
+ * Topics are matched level by level directly on the characters of the topic string, without splitting it,
+ * so a match never allocates and its cost depends on the number of levels of the topic, not on the number of subscriptions.
+ * Matching is lock-free and can run concurrently with subscriptions, which are serialized among themselves.
+ * As in MQTT, wildcards at the first level do not match topics starting with $
+ * @param <T> the type of the subscribers, es. the devices
+ */
+public class TopicTrie<T> {
+    private static final int INDEX_THRESHOLD = 8;
+
+    private final Node<T> root = new Node<>("", 0);
+    private int size = 0;
+
+    /**
+     * Adds a subscription
+     * @param filter the topic filter, es. 'es/upv/+/road/#'
+     * @param subscriber the subscriber
+     * @return true if the subscriber is the first one of the filter
+     */
+    public synchronized boolean subscribe(String filter, T subscriber) {
+        Node<T> node = this.root;
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) end = filter.length();
+            node = node.getOrCreateChild(filter, start, end);
+            if (end == filter.length()) break;
+            start = end + 1;
+        }
+        boolean first = node.subscribers.count == 0;
+        if (node.add(subscriber)) this.size++;
+        return first && node.subscribers.count > 0;
+    }
+
+    /**
+     * Removes a subscription
+     * @param filter the topic filter
+     * @param subscriber the subscriber
+     * @return true if the filter has no subscribers left
+     */
+    public synchronized boolean unsubscribe(String filter, T subscriber) {
+        Node<T> node = find(filter);
+        if (node == null) return true;
+        if (node.remove(subscriber)) this.size--;
+        return node.subscribers.count == 0;
+    }
+
+    /**
+     * @param filter the topic filter
+     * @return the number of subscribers of the filter
+     */
+    public int subscribers(String filter) {
+        Node<T> node = find(filter);
+        return node == null ? 0 : node.subscribers.count;
+    }
+
+    /**
+     * @return the total number of subscriptions
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Visits the subscribers of all the filters matching the topic, without allocating.
+     * A subscriber of several matching filters is visited once per filter
+     * @param topic the topic of the published message
+     * @param visitor the action to be performed on every subscriber
+     * @return the number of visits
+     */
+    public int match(String topic, Consumer<? super T> visitor) {
+        // Wildcards at the first level must not match topics such as $timer
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        return match(this.root, topic, 0, visitor, null, system);
+    }
+
+    /**
+     * Adds to the collection the subscribers of all the filters matching the topic
+     * @param topic the topic of the published message
+     * @param subscribers the collection where to add the subscribers, a set to have every subscriber once
+     * @return the number of visits
+     */
+    public int matchInto(String topic, Collection<? super T> subscribers) {
+        // The collection is filled directly, so the hot path does not allocate a visitor per message
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        return match(this.root, topic, 0, null, subscribers, system);
+    }
+
+    /**
+     * @param topic the topic of the published message
+     * @return the set of distinct subscribers of all the filters matching the topic
+     */
+    public Set<T> match(String topic) {
+        Set<T> subscribers = Collections.newSetFromMap(new IdentityHashMap<>());
+        matchInto(topic, subscribers);
+        return subscribers;
+    }
+
+    /**
+     * Either the visitor or the collection is given, the other is null
+     */
+    private int match(Node<T> node, String topic, int start, Consumer<? super T> visitor, Collection<? super T> subscribers, boolean system) {
+        int visits = 0;
+        // # also matches the parent level, so it is checked before looking at the next level
+        Node<T> multiLevel = node.multiLevel;
+        if (multiLevel != null && !system) visits += multiLevel.visit(visitor, subscribers);
+        if (start > topic.length()) return visits + node.visit(visitor, subscribers);
+
+        int end = topic.indexOf('/', start);
+        if (end < 0) end = topic.length();
+        Node<T> child = node.findChild(topic, start, end);
+        if (child != null) visits += match(child, topic, end + 1, visitor, subscribers, false);
+        Node<T> singleLevel = node.singleLevel;
+        if (singleLevel != null && !system) visits += match(singleLevel, topic, end + 1, visitor, subscribers, false);
+        return visits;
+    }
+
+    /**
+     * Checks whether a single topic filter matches a topic, without allocating
+     * @param filter the topic filter, it can contain the wildcards + and #
+     * @param topic the topic of the published message
+     * @return true if the filter matches the topic
+     */
+    public static boolean matches(String filter, String topic) {
+        if (!topic.isEmpty() && topic.charAt(0) == '$' && !filter.isEmpty() && (filter.charAt(0) == '+' || filter.charAt(0) == '#'))
+            return false;
+        int f = 0;
+        int t = 0;
+        while (true) {
+            int filterEnd = filter.indexOf('/', f);
+            if (filterEnd < 0) filterEnd = filter.length();
+            if (filterEnd - f == 1 && filter.charAt(f) == '#') return true;
+            if (t > topic.length()) return false;
+            int topicEnd = topic.indexOf('/', t);
+            if (topicEnd < 0) topicEnd = topic.length();
+            boolean single = filterEnd - f == 1 && filter.charAt(f) == '+';
+            if (!single && (filterEnd - f != topicEnd - t || !filter.regionMatches(f, topic, t, filterEnd - f))) return false;
+            f = filterEnd + 1;
+            t = topicEnd + 1;
+            if (f > filter.length()) return t > topic.length();
+        }
+    }
+
+    private Node<T> find(String filter) {
+        Node<T> node = this.root;
+        int start = 0;
+        while (node != null) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) end = filter.length();
+            if (end - start == 1 && filter.charAt(start) == '+') node = node.singleLevel;
+            else if (end - start == 1 && filter.charAt(start) == '#') node = node.multiLevel;
+            else node = node.findChild(filter, start, end);
+            if (end == filter.length()) return node;
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A level of the trie, nodes are never removed so that readers can walk the trie without locks
+     */
+    private static final class Node<T> {
+        private final String level;
+        private final int hash;
+        // Open addressing table of the children, only replaced as a whole when it grows
+        private volatile AtomicReferenceArray<Node<T>> children;
+        private int numberOfChildren = 0;
+        private volatile Node<T> singleLevel;
+        private volatile Node<T> multiLevel;
+        private volatile Subscribers subscribers = new Subscribers(new Object[0], 0);
+        // Only used by the writers, to check quickly whether a subscriber is already present in large nodes
+        private Set<Object> index;
+
+        Node(String level, int hash) {
+            this.level = level;
+            this.hash = hash;
+        }
+
+        Node<T> findChild(String topic, int start, int end) {
+            AtomicReferenceArray<Node<T>> table = this.children;
+            if (table == null) return null;
+            int h = hash(topic, start, end);
+            int mask = table.length() - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node<T> node = table.get(i);
+                if (node == null) return null;
+                if (node.hash == h && node.level.length() == end - start && node.level.regionMatches(0, topic, start, end - start))
+                    return node;
+            }
+        }
+
+        Node<T> getOrCreateChild(String filter, int start, int end) {
+            if (end - start == 1 && filter.charAt(start) == '+') {
+                if (this.singleLevel == null) this.singleLevel = new Node<>("+", 0);
+                return this.singleLevel;
+            }
+            if (end - start == 1 && filter.charAt(start) == '#') {
+                if (this.multiLevel == null) this.multiLevel = new Node<>("#", 0);
+                return this.multiLevel;
+            }
+            Node<T> child = findChild(filter, start, end);
+            if (child != null) return child;
+            child = new Node<>(filter.substring(start, end), hash(filter, start, end));
+            AtomicReferenceArray<Node<T>> table = this.children;
+            if (table == null || (this.numberOfChildren + 1) * 2 > table.length()) {
+                AtomicReferenceArray<Node<T>> grown = new AtomicReferenceArray<>(table == null ? 4 : table.length() * 2);
+                if (table != null) {
+                    for (int i = 0; i < table.length(); i++) {
+                        if (table.get(i) != null) insert(grown, table.get(i));
+                    }
+                }
+                insert(grown, child);
+                this.children = grown;
+            } else {
+                insert(table, child);
+            }
+            this.numberOfChildren++;
+            return child;
+        }
+
+        private static <T> void insert(AtomicReferenceArray<Node<T>> table, Node<T> node) {
+            int mask = table.length() - 1;
+            int i = node.hash & mask;
+            while (table.get(i) != null) i = (i + 1) & mask;
+            table.set(i, node);
+        }
+
+        boolean add(T subscriber) {
+            Subscribers current = this.subscribers;
+            if (contains(current, subscriber)) return false;
+            if (current.count < current.items.length) {
+                // Readers only look at the first count items, so the new item can be written in place before publishing it
+                current.items[current.count] = subscriber;
+                current.count = current.count + 1;
+            } else {
+                Object[] items = Arrays.copyOf(current.items, Math.max(2, current.items.length * 2));
+                items[current.count] = subscriber;
+                this.subscribers = new Subscribers(items, current.count + 1);
+            }
+            if (this.index != null) this.index.add(subscriber);
+            else if (this.subscribers.count > INDEX_THRESHOLD) buildIndex();
+            return true;
+        }
+
+        boolean remove(T subscriber) {
+            Subscribers current = this.subscribers;
+            if (!contains(current, subscriber)) return false;
+            Object[] items = new Object[Math.max(2, current.items.length)];
+            int count = 0;
+            for (int i = 0; i < current.count; i++) {
+                if (current.items[i] != subscriber) items[count++] = current.items[i];
+            }
+            this.subscribers = new Subscribers(items, count);
+            if (this.index != null) this.index.remove(subscriber);
+            return true;
+        }
+
+        private boolean contains(Subscribers current, T subscriber) {
+            if (this.index != null) return this.index.contains(subscriber);
+            for (int i = 0; i < current.count; i++) {
+                if (current.items[i] == subscriber) return true;
+            }
+            return false;
+        }
+
+        private void buildIndex() {
+            this.index = Collections.newSetFromMap(new IdentityHashMap<>());
+            Subscribers current = this.subscribers;
+            for (int i = 0; i < current.count; i++) this.index.add(current.items[i]);
+        }
+
+        @SuppressWarnings("unchecked")
+        int visit(Consumer<? super T> visitor, Collection<? super T> subscribers) {
+            Subscribers current = this.subscribers;
+            int count = current.count;
+            Object[] items = current.items;
+            if (visitor != null) {
+                for (int i = 0; i < count; i++) visitor.accept((T) items[i]);
+            } else {
+                for (int i = 0; i < count; i++) subscribers.add((T) items[i]);
+            }
+            return count;
+        }
+    }
+
+    private static final class Subscribers {
+        private final Object[] items;
+        private volatile int count;
+
+        Subscribers(Object[] items, int count) {
+            this.items = items;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package main.java.device.connections;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface represents the connection of a device to a message broker.
+ * Messages received on the subscribed topics are delivered to the device through Device.onMessage
+ */
+public interface Transport {
+    /**
+     * Listener of the state of the connection, notified when it is lost and when it is established again
+     */
+    interface ConnectionListener {
+        void connectionLost(Throwable cause);
+
+        void connectionRestored();
+    }
+
+    /**
+     * Subscribes to the topic filter
+     * @param topic the topic filter, it can contain the MQTT wildcards + and #
+     */
+    void subscribe(String topic) throws MqttException;
+
+    /**
+     * Unsubscribes from the topic filter
+     * @param topic the topic filter
+     */
+    void unsubscribe(String topic) throws MqttException;
+
+    /**
+     * Publishes a message
+     * @param topic where to publish
+     * @param payload the serialized message
+     * @param qos the MQTT quality of service (0 or 1)
+     * @param retained true if the broker has to keep the message for future subscribers
+     */
+    void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException;
+
+    /**
+     * Publishes a message without waiting for the broker, transports without an asynchronous API publish synchronously
+     * @param topic where to publish
+     * @param payload the serialized message
+     * @param qos the MQTT quality of service (0 or 1)
+     * @param retained true if the broker has to keep the message for future subscribers
+     * @return a future completed when the broker completes the publish
+     */
+    default CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        publish(topic, payload, qos, retained);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Closes the connection
+     */
+    void disconnect() throws MqttException;
+
+    /**
+     * Sets the listener of the state of the connection, if the connection is already down it is notified immediately.
+     * Transports that cannot lose their connection never notify it
+     * @param listener the listener
+     */
+    default void setConnectionListener(ConnectionListener listener) {}
+
+    /**
+     * Re-establishes a lost connection, transports that cannot lose their connection do nothing
+     */
+    default void reconnect() throws MqttException {}
+}
@@ -0,0 +1,20 @@
+package main.java.device.connections;
+
+import main.java.device.Device;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * This interface represents a factory of transports, one implementation for every kind of broker
+ */
+@FunctionalInterface
+public interface TransportProvider {
+    /**
+     * Connects a device to a broker
+     * @param device the device whose messages will be delivered
+     * @param address the address of the broker (or the endpoint, for AWS IoT)
+     * @param certificateFile the certificate of the device, null for brokers without authentication
+     * @param privateKeyFile the private key of the device, null for brokers without authentication
+     * @return the connected transport
+     */
+    Transport connect(Device device, String address, String certificateFile, String privateKeyFile) throws MqttException;
+}
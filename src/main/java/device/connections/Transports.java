@@ -0,0 +1,68 @@
+package main.java.device.connections;
+
+import main.java.utils.Logger;
+
+/**
+ * This class holds the transport providers used by the devices of the process to connect to the MQTT broker and to AWS IoT.
+ * With the system property "smartcity.transport" set to "loopback" both are replaced by in-memory brokers, so whole
+ * scenarios can run in a single JVM without network
+ */
+public class Transports {
+    /**
+     * Real MQTT broker, through a dedicated Paho client per device or through the shared multiplexer
+     */
+    public static final TransportProvider MQTT = (device, address, certificateFile, privateKeyFile) ->
+            MQTTMultiplexer.isEnabled() ? MQTTMultiplexer.forBroker(address).open(device) : new PahoTransport(device, address);
+    /**
+     * Real AWS IoT endpoint, through a dedicated AWS IoT client per device or through the shared gateway
+     */
+    public static final TransportProvider AWS = (device, address, certificateFile, privateKeyFile) ->
+            AWSGateway.isEnabled() ? AWSGateway.forEndpoint(address, certificateFile, privateKeyFile).open(device)
+                    : new AWSIotTransport(device, address, certificateFile, privateKeyFile);
+    /**
+     * In-memory broker, one for every address, with MQTT topic and wildcard semantics
+     */
+    public static final TransportProvider LOOPBACK = (device, address, certificateFile, privateKeyFile) ->
+            LoopbackBroker.forAddress(address).connect(device);
+
+    private static volatile TransportProvider mqttProvider = MQTT;
+    private static volatile TransportProvider awsProvider = AWS;
+
+    static {
+        if ("loopback".equalsIgnoreCase(System.getProperty("smartcity.transport"))) useLoopback();
+    }
+
+    private Transports() {}
+
+    /**
+     * Replaces both the MQTT broker and AWS IoT with in-memory brokers for the connections created from now on
+     */
+    public static void useLoopback() {
+        mqttProvider = LOOPBACK;
+        awsProvider = LOOPBACK;
+        Logger.info("Transports", "Using in-memory loopback brokers");
+    }
+
+    /**
+     * @return true if the devices are connected to in-memory brokers
+     */
+    public static boolean isLoopback() {
+        return mqttProvider == LOOPBACK;
+    }
+
+    public static TransportProvider getMqttProvider() {
+        return mqttProvider;
+    }
+
+    public static void setMqttProvider(TransportProvider provider) {
+        mqttProvider = provider;
+    }
+
+    public static TransportProvider getAwsProvider() {
+        return awsProvider;
+    }
+
+    public static void setAwsProvider(TransportProvider provider) {
+        awsProvider = provider;
+    }
+}
@@ -0,0 +1,80 @@
+package main.java.device.runtime;
+
+import main.java.utils.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed pool of worker threads on which devices are run as actors.
+ * A device only gets a worker when its mailbox is not empty, handles at most "throughput" messages and then yields
+ * the worker to the next device, so thousands of devices can share a handful of threads.
+ * A device is never scheduled twice at the same time, so its handlers still run single-threaded.
+ * The size of the shared scheduler can be tuned with the system properties "smartcity.actor.workers" and "smartcity.actor.throughput"
+ */
+public class ActorScheduler {
+    private static ActorScheduler shared;
+
+    private final ExecutorService workers;
+    private final int throughput;
+    private final LongAdder turns = new LongAdder();
+
+    /**
+     * Creates a new scheduler
+     * @param workers the number of worker threads
+     * @param throughput the maximum number of messages a device handles before yielding its worker
+     */
+    public ActorScheduler(int workers, int throughput) {
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> new Thread(task, "actor-worker-" + counter.incrementAndGet()));
+        this.throughput = Math.max(1, throughput);
+    }
+
+    /**
+     * @return the scheduler shared by all the devices of the process, created on first use
+     */
+    public static synchronized ActorScheduler getShared() {
+        if (shared == null) {
+            int workers = Integer.getInteger("smartcity.actor.workers", Runtime.getRuntime().availableProcessors());
+            int throughput = Integer.getInteger("smartcity.actor.throughput", 32);
+            shared = new ActorScheduler(workers, throughput);
+            Logger.info("ActorScheduler", "Started " + workers + " workers with a throughput of " + throughput + " messages per turn");
+        }
+        return shared;
+    }
+
+    /**
+     * Submits the turn of a device to the workers
+     * @param turn the turn to be executed
+     */
+    public void execute(Runnable turn) {
+        this.turns.increment();
+        this.workers.execute(turn);
+    }
+
+    /**
+     * @return the maximum number of messages a device handles in a single turn
+     */
+    public int getThroughput() {
+        return this.throughput;
+    }
+
+    /**
+     * @return the total number of turns submitted to the workers
+     */
+    public long getTurns() {
+        return this.turns.sum();
+    }
+
+    /**
+     * Stops the workers once all the submitted turns have been executed
+     */
+    public void shutdown() {
+        this.workers.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+package main.java.device.runtime;
+
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class conflates a batch of messages drained from the mailbox of a device, according to per-message-type policies:
+ * - merge: all the queued messages of the type are collapsed into the last one, which carries how many messages it stands for
+ * - latest by key: only the last queued message for every value of a key field of the inner payload is kept,
+ *   messages without the key field are all kept
+ * Messages of any other type are left untouched, and the relative order of the kept messages is preserved
+ */
+public class Conflator {
+    private final Set<String> mergedTypes = new HashSet<>();
+    private final Map<String, String> keyFields = new HashMap<>();
+    private final Set<String> seenKeys = new HashSet<>();
+    private final Map<String, Integer> mergeCounts = new HashMap<>();
+    private volatile long dropped = 0;
+    private volatile long merged = 0;
+
+    /**
+     * Collapses all the queued messages of the given type into the last one
+     * @param type the type of the messages, es. 'SIMULATOR_STEP'
+     */
+    public void merge(String type) {
+        this.keyFields.remove(type);
+        this.mergedTypes.add(type);
+    }
+
+    /**
+     * Keeps only the last queued message of the given type for every value of the key field
+     * @param type the type of the messages, es. 'ROAD_STATUS'
+     * @param keyField the field of the inner payload identifying the entity the message refers to, es. 'road-segment'
+     */
+    public void keepLatestBy(String type, String keyField) {
+        this.mergedTypes.remove(type);
+        this.keyFields.put(type, keyField);
+    }
+
+    /**
+     * Disables the conflation for the given type
+     * @param type the type of the messages
+     */
+    public void disable(String type) {
+        this.mergedTypes.remove(type);
+        this.keyFields.remove(type);
+    }
+
+    /**
+     * Conflates the batch in place, it must only be called by the thread running the device
+     * @param batch the drained messages, in arrival order
+     */
+    public void conflate(List<MQTTMessage> batch) {
+        if (batch.size() < 2 || (this.mergedTypes.isEmpty() && this.keyFields.isEmpty())) return;
+
+        // Walk the batch backwards, so the first occurrence found is the one to be kept
+        for (String type : this.mergedTypes) this.mergeCounts.put(type, 0);
+        for (MQTTMessage message : batch) {
+            String type = message.getPayload().getType();
+            Integer count = this.mergeCounts.get(type);
+            if (count != null) this.mergeCounts.put(type, count + message.getCount());
+        }
+
+        List<MQTTMessage> kept = new ArrayList<>(batch.size());
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            MQTTMessage message = batch.get(i);
+            Message payload = message.getPayload();
+            String type = payload.getType();
+            if (this.mergedTypes.contains(type)) {
+                int count = this.mergeCounts.get(type);
+                if (count < 0) {
+                    this.merged += message.getCount();
+                    continue;
+                }
+                kept.add(count == message.getCount() ? message : new MQTTMessage(message.getTopic(), payload, count));
+                this.mergeCounts.put(type, -1);
+            } else if (this.keyFields.containsKey(type)) {
+                Object value = payload.getMsg().opt(this.keyFields.get(type));
+                if (value != null && !this.seenKeys.add(type + "/" + value)) {
+                    this.dropped++;
+                    continue;
+                }
+                kept.add(message);
+            } else {
+                kept.add(message);
+            }
+        }
+        this.seenKeys.clear();
+        this.mergeCounts.clear();
+
+        if (kept.size() == batch.size()) return;
+        batch.clear();
+        for (int i = kept.size() - 1; i >= 0; i--) batch.add(kept.get(i));
+    }
+
+    /**
+     * @return the number of messages discarded because a newer message for the same key was queued
+     */
+    public long getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * @return the number of messages merged into a later message of the same type
+     */
+    public long getMergedCount() {
+        return this.merged;
+    }
+}
@@ -0,0 +1,206 @@
+package main.java.device.runtime;
+
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class detects the messages a device receives more than once, es. an alert redelivered on the same topic after
+ * a reconnection, so they can be dropped before being handled. Only the messages of the configured types are checked,
+ * since duplicates only matter for the types that trigger actions, and messages are told apart by their topic and
+ * unique id: the copies of an alert published both on the broker and on AWS arrive on different topics and are both
+ * delivered, the handlers acting on either of them tell them apart by their id alone with isDuplicate(Message).
+ * Recent ids are kept exactly in a bounded LRU ("smartcity.dedup.lru", 1024 ids). Ids evicted from it are still
+ * remembered by a Bloom filter made of two generations of "smartcity.dedup.bits" bits (65536) each, rotated every
+ * "smartcity.dedup.window" milliseconds (60000), so an id is remembered for one to two windows. A Bloom filter can give
+ * false positives, a generation is also rotated early when it holds one id every 32 bits, which keeps them below one
+ * in ten thousand however many messages are received
+ */
+public class Deduplicator {
+    private static final int HASHES = 6;
+
+    private final Set<String> types = new HashSet<>();
+    private final int lruSize;
+    private final long windowMs;
+    private final int bits;
+    private Map<String, Boolean> recent;
+    private long[] current;
+    private long[] previous;
+    private long rotatedAt;
+    private int added = 0;
+    private long checked = 0;
+    private long lruHits = 0;
+    private long bloomHits = 0;
+
+    public Deduplicator() {
+        this(Integer.getInteger("smartcity.dedup.lru", 1024), Long.getLong("smartcity.dedup.window", 60000), Integer.getInteger("smartcity.dedup.bits", 1 << 16));
+    }
+
+    /**
+     * @param lruSize the number of recent ids kept exactly
+     * @param windowMs the time after which the generations of the Bloom filter are rotated
+     * @param bits the number of bits of each generation of the Bloom filter, rounded up to a multiple of 64
+     */
+    public Deduplicator(int lruSize, long windowMs, int bits) {
+        this.lruSize = Math.max(1, lruSize);
+        this.windowMs = windowMs;
+        this.bits = Math.max(64, (bits + 63) / 64 * 64);
+    }
+
+    /**
+     * Checks for duplicates the messages of the given type
+     * @param type the type of the messages, es. 'ACCIDENT'
+     */
+    public synchronized void check(String type) {
+        this.types.add(type);
+    }
+
+    /**
+     * Stops checking the messages of the given type
+     * @param type the type of the messages
+     */
+    public synchronized void ignore(String type) {
+        this.types.remove(type);
+    }
+
+    /**
+     * Records the message and tells whether it was already received, it can be called by any thread
+     * @param message the received message
+     * @return true if the message is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(MQTTMessage message) {
+        Message payload = message.getPayload();
+        if (!payload.hasUniqueId()) return false;
+        synchronized (this) {
+            if (!this.types.contains(payload.getType())) return false;
+            return isDuplicate(message.getTopic() + "#" + payload.getId(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records the message and tells whether a message with the same id was already received on any topic, es. the
+     * copy of an alert received from AWS after the one received from the broker
+     * @param payload the received message
+     * @return true if the message is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(Message payload) {
+        if (!payload.hasUniqueId()) return false;
+        synchronized (this) {
+            if (!this.types.contains(payload.getType())) return false;
+            return isDuplicate(payload.getId(), System.currentTimeMillis());
+        }
+    }
+
+    private boolean isDuplicate(String id, long now) {
+        if (this.recent == null) {
+            // The filter is only allocated by the devices that actually receive the checked types
+            this.recent = new LinkedHashMap<>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > lruSize;
+                }
+            };
+            this.current = new long[this.bits / 64];
+            this.previous = new long[this.bits / 64];
+            this.rotatedAt = now;
+        }
+        if (now - this.rotatedAt >= this.windowMs || this.added >= this.bits / 32) rotate(now);
+        this.checked++;
+
+        if (this.recent.put(id, Boolean.TRUE) != null) {
+            this.lruHits++;
+            return true;
+        }
+        long hash = hash(id);
+        if (contains(this.current, hash) || contains(this.previous, hash)) {
+            this.bloomHits++;
+            return true;
+        }
+        add(this.current, hash);
+        this.added++;
+        return false;
+    }
+
+    private void rotate(long now) {
+        long[] cleared = this.previous;
+        Arrays.fill(cleared, 0);
+        // After two windows without messages both generations are stale
+        if (now - this.rotatedAt >= 2 * this.windowMs) Arrays.fill(this.current, 0);
+        this.previous = this.current;
+        this.current = cleared;
+        this.rotatedAt = now;
+        this.added = 0;
+    }
+
+    private boolean contains(long[] filter, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, this.bits);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void add(long[] filter, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = Math.floorMod(h1 + i * h2, this.bits);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static long hash(String id) {
+        // 64-bit FNV-1a, then a final mix so that both halves are usable as independent hashes
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return the number of messages checked for duplicates
+     */
+    public synchronized long getCheckedCount() {
+        return this.checked;
+    }
+
+    /**
+     * @return the number of duplicates detected
+     */
+    public synchronized long getDuplicateCount() {
+        return this.lruHits + this.bloomHits;
+    }
+
+    /**
+     * @return the number of duplicates whose id was still in the LRU
+     */
+    public synchronized long getLruHits() {
+        return this.lruHits;
+    }
+
+    /**
+     * @return the number of duplicates detected by the Bloom filter only, false positives included
+     */
+    public synchronized long getBloomHits() {
+        return this.bloomHits;
+    }
+
+    /**
+     * @return the fraction of the checked messages that were duplicates
+     */
+    public synchronized double getHitRate() {
+        return this.checked == 0 ? 0 : (double) (this.lruHits + this.bloomHits) / this.checked;
+    }
+}
@@ -0,0 +1,89 @@
+package main.java.device.runtime;
+
+import main.java.device.Device;
+import main.java.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class brings up many devices concurrently. Every init runs on its own virtual thread, as it mostly waits for
+ * the network, and a semaphore bounds how many of them connect at the same time so the brokers are not flooded.
+ * When the launch is over the timings of every startup phase are logged
+ */
+public class DeviceLauncher {
+    private final int parallelism;
+
+    /**
+     * @param parallelism the maximum number of devices connecting at the same time
+     */
+    public DeviceLauncher(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return a launcher with the parallelism of the system property "smartcity.startup.parallelism", 64 if not set
+     */
+    public static DeviceLauncher fromProperties() {
+        return new DeviceLauncher(Integer.getInteger("smartcity.startup.parallelism", 64));
+    }
+
+    /**
+     * Initializes all the devices and waits for them, a device that fails to start does not stop the others
+     * @param devices the devices to be initialized
+     * @return the devices that failed to start
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<Device> launch(Collection<? extends Device> devices) throws InterruptedException {
+        Semaphore permits = new Semaphore(this.parallelism);
+        ConcurrentLinkedQueue<Device> failed = new ConcurrentLinkedQueue<>();
+        AtomicInteger started = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>(devices.size());
+        long start = System.nanoTime();
+        for (Device device : devices) {
+            threads.add(Thread.ofVirtual().name("init-" + device.getId()).start(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    failed.add(device);
+                    return;
+                }
+                long initStart = System.nanoTime();
+                try {
+                    device.init();
+                    StartupPhase.INIT.record(initStart);
+                    started.incrementAndGet();
+                } catch (Exception e) {
+                    Logger.error("DeviceLauncher", "Error starting " + device.getId() + ": " + e.getMessage());
+                    failed.add(device);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.join();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        Logger.info("DeviceLauncher", "Started " + started.get() + " devices in " + elapsedMs + " ms (" + failed.size() + " failed, parallelism " + this.parallelism + ")");
+        logTimings();
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * Logs the count, average and maximum duration of every startup phase
+     */
+    public static void logTimings() {
+        for (StartupPhase phase : StartupPhase.values()) {
+            if (phase.getCount() == 0) continue;
+            Logger.info("DeviceLauncher", String.format("%-12s count=%d avg=%.2f ms max=%.2f ms",
+                    phase.name(), phase.getCount(), phase.getAverageMs(), phase.getMaxNanos() / 1e6));
+        }
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+}
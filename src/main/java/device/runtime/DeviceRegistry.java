@@ -0,0 +1,106 @@
+package main.java.device.runtime;
+
+import main.java.device.Device;
+import main.java.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of the running devices.
+ * It decides, depending on the selected execution mode, which kind of thread hosts the loop of every device,
+ * and allows to stop and join all the devices of the process at once.
+ * The execution mode can be selected with the system property "smartcity.execution" (platform, virtual or actor)
+ */
+public class DeviceRegistry {
+    private static volatile ExecutionMode executionMode = ExecutionMode.get(System.getProperty("smartcity.execution"));
+    private static final Set<Device> devices = ConcurrentHashMap.newKeySet();
+
+    private DeviceRegistry() {}
+
+    /**
+     * @return the execution mode used for the devices started from now on
+     */
+    public static ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Sets the execution mode for the devices started from now on, already running devices are not affected
+     * @param mode the new execution mode
+     */
+    public static void setExecutionMode(ExecutionMode mode) {
+        executionMode = mode;
+        Logger.info("DeviceRegistry", "Execution mode set to " + mode);
+    }
+
+    /**
+     * Registers the device and starts its loop on a thread of the current execution mode,
+     * or attaches it to the shared ActorScheduler when running in actor mode
+     * @param device the device to be started
+     */
+    public static void start(Device device) {
+        if (!devices.add(device)) {
+            Logger.warn("DeviceRegistry", "Device " + device.getId() + " has already been started");
+            return;
+        }
+        ExecutionMode mode = executionMode;
+        if (mode == ExecutionMode.ACTOR) {
+            device.startOn(ActorScheduler.getShared());
+        } else {
+            mode.newThread(device.getId(), device).start();
+        }
+    }
+
+    /**
+     * Removes the device from the registry, it is called by the device itself when its loop ends
+     * @param device the device to be removed
+     */
+    public static void unregister(Device device) {
+        devices.remove(device);
+    }
+
+    /**
+     * @return a snapshot of the devices that are currently running
+     */
+    public static List<Device> getDevices() {
+        return new ArrayList<>(devices);
+    }
+
+    /**
+     * @return the number of devices that are currently running
+     */
+    public static int size() {
+        return devices.size();
+    }
+
+    /**
+     * Stops all the registered devices
+     */
+    public static void stopAll() {
+        for (Device device : devices) {
+            device.stop();
+        }
+    }
+
+    /**
+     * Waits for the loops of all the registered devices to end
+     * @param timeoutMs the maximum time to wait in milliseconds, 0 to wait forever
+     * @return true if all the devices ended before the timeout, false otherwise
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public static boolean joinAll(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Device device : new ArrayList<>(devices)) {
+            if (timeoutMs == 0) {
+                device.awaitTermination(0);
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !device.awaitTermination(remaining)) return false;
+        }
+        return true;
+    }
+}
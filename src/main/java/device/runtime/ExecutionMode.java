@@ -0,0 +1,49 @@
+package main.java.device.runtime;
+
+/**
+ * This enum represents the different ways in which the loop of a device can be executed
+ */
+public enum ExecutionMode {
+    /**
+     * Every device runs on its own platform (OS) thread
+     */
+    PLATFORM_THREAD,
+    /**
+     * Every device runs on its own virtual thread, multiplexed by the JVM over a small pool of carrier threads
+     */
+    VIRTUAL_THREAD,
+    /**
+     * Devices do not own a thread, they are run as actors on the fixed pool of workers of the shared ActorScheduler
+     */
+    ACTOR;
+
+    /**
+     * Creates the thread that will host the loop of a device, without starting it.
+     * It must not be called for the ACTOR mode, whose devices do not own a thread
+     * @param name the name of the thread
+     * @param task the loop to be executed
+     * @return the unstarted thread
+     */
+    Thread newThread(String name, Runnable task) {
+        return switch (this) {
+            case PLATFORM_THREAD -> Thread.ofPlatform().name(name).unstarted(task);
+            case VIRTUAL_THREAD -> Thread.ofVirtual().name(name).unstarted(task);
+            case ACTOR -> throw new IllegalStateException("Devices in actor mode do not own a thread");
+        };
+    }
+
+    /**
+     * Parses the execution mode from its name, accepting also the short forms "platform", "virtual" and "actor".
+     * Names are matched exactly, ignoring the case, so es. "v" is not a mode
+     * @param name the name of the mode, if null or unknown the platform mode is returned
+     * @return the execution mode
+     */
+    public static ExecutionMode get(String name) {
+        if (name == null || name.isEmpty()) return PLATFORM_THREAD;
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            String shortName = mode.name().split("_")[0];
+            if (mode.name().equalsIgnoreCase(name) || shortName.equalsIgnoreCase(name)) return mode;
+        }
+        return PLATFORM_THREAD;
+    }
+}
@@ -0,0 +1,125 @@
+package main.java.device.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free multi-producer/single-consumer queue used as the mailbox of a device.
+ * Any number of threads (MQTT and AWS callback threads) can offer messages without ever blocking,
+ * while only the thread running the device drains them, in batches and outside any lock.
+ * @param <T> the type of the stored messages
+ */
+public class Mailbox<T> {
+    private final AtomicReference<Node<T>> tail;
+    // Only accessed by the consumer, it always points to an already consumed (or stub) node
+    private Node<T> head;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder enqueued = new LongAdder();
+    private volatile long drained = 0;
+    private volatile long drainBatches = 0;
+
+    public Mailbox() {
+        Node<T> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Adds a message to the mailbox, it can be called concurrently from any thread and never blocks
+     * @param item the message to be added
+     */
+    public void offer(T item) {
+        Node<T> node = new Node<>(item);
+        this.depth.incrementAndGet();
+        this.enqueued.increment();
+        Node<T> previous = this.tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Removes up to max messages from the mailbox and passes them to the handler, in arrival order.
+     * It must only be called by the consumer thread
+     * @param handler the action to be performed on every message
+     * @param max the maximum number of messages to be drained
+     * @return the number of drained messages
+     */
+    public int drain(Consumer<? super T> handler, int max) {
+        int count = 0;
+        while (count < max) {
+            Node<T> next = this.head.next;
+            if (next == null) break;
+            T item = next.item;
+            next.item = null;
+            this.head = next;
+            this.depth.decrementAndGet();
+            count++;
+            handler.accept(item);
+        }
+        if (count > 0) {
+            this.drained += count;
+            this.drainBatches++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the next message of the mailbox, it must only be called by the consumer thread
+     * @return the next message, or null if the mailbox is empty
+     */
+    public T poll() {
+        Node<T> next = this.head.next;
+        if (next == null) return null;
+        T item = next.item;
+        next.item = null;
+        this.head = next;
+        this.depth.decrementAndGet();
+        this.drained++;
+        return item;
+    }
+
+    /**
+     * @return true if there are no messages that can be drained
+     */
+    public boolean isEmpty() {
+        return this.head.next == null;
+    }
+
+    /**
+     * @return the number of messages waiting in the mailbox
+     */
+    public int size() {
+        return Math.max(0, this.depth.get());
+    }
+
+    /**
+     * @return the total number of messages offered to the mailbox
+     */
+    public long getEnqueuedCount() {
+        return this.enqueued.sum();
+    }
+
+    /**
+     * @return the total number of messages drained from the mailbox
+     */
+    public long getDrainedCount() {
+        return this.drained;
+    }
+
+    /**
+     * @return the number of non-empty drain operations performed on the mailbox
+     */
+    public long getDrainBatches() {
+        return this.drainBatches;
+    }
+
+    private static final class Node<T> {
+        T item;
+        volatile Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package main.java.device.runtime;
+
+/**
+ * This enum represents the priority lanes of the mailbox of a device, in order of precedence
+ */
+public enum MessagePriority {
+    /**
+     * Safety-critical messages, es. accidents and commands, always handled first
+     */
+    HIGH,
+    /**
+     * Regular messages, es. simulator steps and road status
+     */
+    NORMAL,
+    /**
+     * Bulk messages that can wait, es. vehicle positions
+     */
+    LOW
+}
@@ -0,0 +1,147 @@
+package main.java.device.runtime;
+
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Mailbox made of several lock-free lanes, one for every priority level.
+ * Messages are always taken from the highest priority lane that is not empty, but to avoid starvation a waiting lower
+ * priority lane is served once it has been overtaken by starvationLimit messages of higher lanes.
+ * Like the Mailbox, it can be offered from any thread but must only be drained by the thread running the device
+ * @param <T> the type of the stored messages
+ */
+public class PriorityMailbox<T> {
+    private final Mailbox<T>[] lanes;
+    private final int[] overtaken;
+    private final ToIntFunction<? super T> classifier;
+    private volatile int starvationLimit;
+    private volatile long drainBatches = 0;
+
+    /**
+     * Creates a new mailbox
+     * @param levels the number of priority levels, 0 being the highest
+     * @param classifier the function giving the priority level of every message
+     * @param starvationLimit the number of higher priority messages after which a waiting lower lane is served anyway
+     */
+    public PriorityMailbox(int levels, ToIntFunction<? super T> classifier, int starvationLimit) {
+        @SuppressWarnings("unchecked")
+        Mailbox<T>[] lanes = (Mailbox<T>[]) new Mailbox<?>[levels];
+        this.lanes = lanes;
+        for (int i = 0; i < levels; i++) this.lanes[i] = new Mailbox<>();
+        this.overtaken = new int[levels];
+        this.classifier = classifier;
+        this.starvationLimit = Math.max(1, starvationLimit);
+    }
+
+    /**
+     * Adds a message to the lane of its priority, it can be called concurrently from any thread and never blocks
+     * @param item the message to be added
+     */
+    public void offer(T item) {
+        int level = this.classifier.applyAsInt(item);
+        this.lanes[Math.max(0, Math.min(this.lanes.length - 1, level))].offer(item);
+    }
+
+    /**
+     * Removes up to max messages, highest priority first, and passes them to the handler.
+     * It must only be called by the consumer thread
+     * @param handler the action to be performed on every message
+     * @param max the maximum number of messages to be drained
+     * @return the number of drained messages
+     */
+    public int drain(Consumer<? super T> handler, int max) {
+        int count = 0;
+        while (count < max) {
+            int lane = nextLane();
+            if (lane < 0) break;
+            T item = this.lanes[lane].poll();
+            count++;
+            handler.accept(item);
+        }
+        if (count > 0) this.drainBatches++;
+        return count;
+    }
+
+    /**
+     * Chooses the lane to be served next and updates the starvation counters of the lanes that are overtaken
+     * @return the index of the lane, or -1 if all the lanes are empty
+     */
+    private int nextLane() {
+        int highest = -1;
+        for (int i = 0; i < this.lanes.length; i++) {
+            if (this.lanes[i].isEmpty()) {
+                this.overtaken[i] = 0;
+            } else if (highest < 0) {
+                highest = i;
+            } else if (this.overtaken[i] >= this.starvationLimit) {
+                this.overtaken[i] = 0;
+                return i;
+            }
+        }
+        if (highest < 0) return -1;
+        for (int i = highest + 1; i < this.lanes.length; i++) {
+            if (!this.lanes[i].isEmpty()) this.overtaken[i]++;
+        }
+        return highest;
+    }
+
+    /**
+     * Sets the number of higher priority messages after which a waiting lower lane is served anyway
+     * @param starvationLimit the limit, at least 1
+     */
+    public void setStarvationLimit(int starvationLimit) {
+        this.starvationLimit = Math.max(1, starvationLimit);
+    }
+
+    /**
+     * @return true if there are no messages that can be drained in any lane
+     */
+    public boolean isEmpty() {
+        for (Mailbox<T> lane : this.lanes) {
+            if (!lane.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages waiting in all the lanes
+     */
+    public int size() {
+        int size = 0;
+        for (Mailbox<T> lane : this.lanes) size += lane.size();
+        return size;
+    }
+
+    /**
+     * @param level the priority level of the lane
+     * @return the number of messages waiting in the lane
+     */
+    public int size(int level) {
+        return this.lanes[level].size();
+    }
+
+    /**
+     * @return the total number of messages offered to the mailbox
+     */
+    public long getEnqueuedCount() {
+        long count = 0;
+        for (Mailbox<T> lane : this.lanes) count += lane.getEnqueuedCount();
+        return count;
+    }
+
+    /**
+     * @return the total number of messages drained from the mailbox
+     */
+    public long getDrainedCount() {
+        long count = 0;
+        for (Mailbox<T> lane : this.lanes) count += lane.getDrainedCount();
+        return count;
+    }
+
+    /**
+     * @return the number of non-empty drain operations performed on the mailbox
+     */
+    public long getDrainBatches() {
+        return this.drainBatches;
+    }
+}
@@ -0,0 +1,140 @@
+package main.java.device.runtime;
+
+import main.java.utils.MQTTMessage;
+import main.java.utils.Message;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class follows the sequence numbers of the messages received from every producer on every topic, so that updates
+ * overtaken by a newer update of the same producer can be dropped instead of overwriting it, es. a stale position of a
+ * vehicle delivered late by a parallel or asynchronous path. Only the messages of the configured types are tracked.
+ * Producers carry the session of their client, so a device that is recreated with the same id is followed as a new stream.
+ * Skipped sequence numbers are counted as lost, and no longer as lost if they arrive late, within the last 64 numbers.
+ * At most "smartcity.sequence.streams" producer and topic pairs (4096) are followed, the least recently seen are forgotten
+ */
+public class SequenceTracker {
+    private final Set<String> types = new HashSet<>();
+    private final int maxStreams;
+    private Map<String, Stream> streams;
+    private long tracked = 0;
+    private long stale = 0;
+    private long gaps = 0;
+    private long late = 0;
+
+    public SequenceTracker() {
+        this(Integer.getInteger("smartcity.sequence.streams", 4096));
+    }
+
+    /**
+     * @param maxStreams the maximum number of producer and topic pairs followed
+     */
+    public SequenceTracker(int maxStreams) {
+        this.maxStreams = Math.max(1, maxStreams);
+    }
+
+    /**
+     * Tracks the sequence numbers of the messages of the given type
+     * @param type the type of the messages, es. 'TRAFFIC'
+     */
+    public synchronized void track(String type) {
+        this.types.add(type);
+    }
+
+    /**
+     * Stops tracking the messages of the given type
+     * @param type the type of the messages
+     */
+    public synchronized void ignore(String type) {
+        this.types.remove(type);
+    }
+
+    /**
+     * Records the message and tells whether a newer message of the same producer on the same topic was already received.
+     * It can be called by any thread
+     * @param message the received message
+     * @return true if the message is stale and should be dropped
+     */
+    public boolean isStale(MQTTMessage message) {
+        Message payload = message.getPayload();
+        if (payload.getProducer() == null) return false;
+        synchronized (this) {
+            if (!this.types.contains(payload.getType())) return false;
+            return isStale(payload.getProducer() + "@" + message.getTopic(), payload.getSequence());
+        }
+    }
+
+    private boolean isStale(String key, long sequence) {
+        if (this.streams == null) {
+            this.streams = new LinkedHashMap<>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+                    return size() > maxStreams;
+                }
+            };
+        }
+        this.tracked++;
+        Stream stream = this.streams.get(key);
+        if (stream == null) {
+            // The first message seen from a producer, es. a vehicle entering the segment, gives no gap
+            this.streams.put(key, new Stream(sequence));
+            return false;
+        }
+        if (sequence > stream.last) {
+            long skipped = sequence - stream.last - 1;
+            this.gaps += skipped;
+            stream.seen = skipped >= 63 ? 1 : (stream.seen << (skipped + 1)) | 1;
+            stream.last = sequence;
+            return false;
+        }
+        long age = stream.last - sequence;
+        if (age < 64 && (stream.seen & (1L << age)) == 0) {
+            // A message counted as lost arrived after all, it is still too old to be applied
+            stream.seen |= 1L << age;
+            this.late++;
+        }
+        this.stale++;
+        return true;
+    }
+
+    /**
+     * @return the number of messages whose sequence number was checked
+     */
+    public synchronized long getTrackedCount() {
+        return this.tracked;
+    }
+
+    /**
+     * @return the number of messages dropped because a newer one of the same producer had been received, late and repeated ones
+     */
+    public synchronized long getStaleCount() {
+        return this.stale;
+    }
+
+    /**
+     * @return the number of messages skipped in the sequences and never received, the loss metric
+     */
+    public synchronized long getLostCount() {
+        return this.gaps - this.late;
+    }
+
+    /**
+     * @return the number of messages received after a newer one of the same producer
+     */
+    public synchronized long getReorderedCount() {
+        return this.late;
+    }
+
+    private static class Stream {
+        private long last;
+        // Bit i is set if the message last - i was received
+        private long seen = 1;
+
+        Stream(long last) {
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package main.java.device.runtime;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This enum represents the phases of the bring-up of a device, each of them keeps process-wide timings
+ * so the cost of starting a large city can be broken down
+ */
+public enum StartupPhase {
+    /**
+     * The whole init of a device
+     */
+    INIT,
+    /**
+     * Connection to the MQTT broker
+     */
+    MQTT_CONNECT,
+    /**
+     * Subscriptions made on the MQTT broker
+     */
+    SUBSCRIBE,
+    /**
+     * Connection to AWS IoT, which may happen later than the init when it is lazy
+     */
+    AWS_CONNECT,
+    /**
+     * Start of the loop of the device
+     */
+    START;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a completed execution of the phase
+     * @param startNanos the value of System.nanoTime() when the phase started
+     */
+    public void record(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        this.count.increment();
+        this.totalNanos.add(elapsed);
+        this.maxNanos.accumulate(elapsed);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getTotalNanos() {
+        return this.totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return this.maxNanos.get();
+    }
+
+    /**
+     * @return the average duration of the phase in milliseconds
+     */
+    public double getAverageMs() {
+        long executions = getCount();
+        return executions == 0 ? 0 : getTotalNanos() / 1e6 / executions;
+    }
+
+    /**
+     * Clears the timings of all the phases
+     */
+    public static void resetAll() {
+        for (StartupPhase phase : values()) {
+            phase.count.reset();
+            phase.totalNanos.reset();
+            phase.maxNanos.reset();
+        }
+    }
+}
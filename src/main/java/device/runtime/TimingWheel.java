@@ -0,0 +1,269 @@
+package main.java.device.runtime;
+
+import main.java.utils.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hierarchical hashed timing wheel.
+ * Timers are stored in the slot of the wheel level matching how far their deadline is, and are cascaded towards the
+ * lowest level as time passes, so inserting and cancelling a timer is O(1) whatever the number of pending timers.
+ * Inserts and cancellations are handed over to the ticker thread through lock-free mailboxes, so the ticker thread
+ * is the only one touching the slots and no lock is ever taken.
+ * Expired tasks are run on the ticker thread, hence they must be short and non-blocking (es. delivering a message to a device).
+ * The tick of the shared wheel can be tuned with the system property "smartcity.timer.tick" (in milliseconds)
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+    private static TimingWheel shared;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final Mailbox<Timeout> added = new Mailbox<>();
+    private final Mailbox<Timeout> cancelled = new Mailbox<>();
+    private final Thread ticker;
+    private final LongAdder expired = new LongAdder();
+    private long currentTick = 0;
+    private volatile long pending = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new wheel and starts its ticker thread
+     * @param name the name of the ticker thread
+     * @param tickMs the resolution of the wheel in milliseconds
+     */
+    public TimingWheel(String name, long tickMs) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.startNanos = System.nanoTime();
+        this.ticker = new Thread(this::tickLoop, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * @return the wheel shared by all the devices of the process, created on first use
+     */
+    public static synchronized TimingWheel getShared() {
+        if (shared == null) shared = new TimingWheel("timing-wheel", Long.getLong("smartcity.timer.tick", 10));
+        return shared;
+    }
+
+    /**
+     * Schedules a task to be run once after the given delay
+     * @param delayMs the delay in milliseconds
+     * @param task the task to be run on the ticker thread
+     * @return the handle to cancel the timer
+     */
+    public Timeout schedule(long delayMs, Runnable task) {
+        return schedule(delayMs, 0, task);
+    }
+
+    /**
+     * Schedules a task to be run periodically, until the timer is cancelled
+     * @param initialDelayMs the delay of the first run in milliseconds
+     * @param periodMs the period between two runs in milliseconds
+     * @param task the task to be run on the ticker thread
+     * @return the handle to cancel the timer
+     */
+    public Timeout scheduleAtFixedRate(long initialDelayMs, long periodMs, Runnable task) {
+        return schedule(initialDelayMs, Math.max(1, toTicks(TimeUnit.MILLISECONDS.toNanos(periodMs))), task);
+    }
+
+    private Timeout schedule(long delayMs, long periodTicks, Runnable task) {
+        long deadline = toTicks(System.nanoTime() - this.startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        Timeout timeout = new Timeout(this, task, deadline, periodTicks);
+        this.added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of timers waiting to expire
+     */
+    public long getPendingTimers() {
+        return this.pending;
+    }
+
+    /**
+     * @return the total number of timer expirations
+     */
+    public long getExpiredTimers() {
+        return this.expired.sum();
+    }
+
+    /**
+     * Stops the ticker thread, pending timers will never expire
+     */
+    public void shutdown() {
+        this.running = false;
+        this.ticker.interrupt();
+    }
+
+    private long toTicks(long nanos) {
+        return (nanos + this.tickNanos - 1) / this.tickNanos;
+    }
+
+    private void tickLoop() {
+        while (this.running) {
+            long wakeUp = this.startNanos + (this.currentTick + 1) * this.tickNanos;
+            long sleep = wakeUp - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            this.currentTick++;
+            this.added.drain(this::place, Integer.MAX_VALUE);
+            this.cancelled.drain(this::unlink, Integer.MAX_VALUE);
+            // Cascade from the highest level down, so timers can fall through several levels in the same tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) cascade(level);
+            }
+            expire((int) (this.currentTick & (SLOTS - 1)));
+        }
+    }
+
+    /**
+     * Stores the timer in the slot of the level matching how far its deadline is
+     */
+    private void place(Timeout timeout) {
+        if (timeout.state.get() == Timeout.CANCELLED) return;
+        long delta = timeout.deadline - this.currentTick;
+        if (delta <= 0) {
+            run(timeout);
+            return;
+        }
+        // Deadlines beyond the highest level are parked there and placed again when cascaded
+        long target = delta < MAX_TICKS ? timeout.deadline : this.currentTick + MAX_TICKS - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && (target - this.currentTick) >= (1L << (SLOT_BITS * (level + 1)))) level++;
+        int slot = (int) ((target >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        link(timeout, level, slot);
+    }
+
+    private void cascade(int level) {
+        int slot = (int) ((this.currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Timeout timeout = this.slots[level][slot];
+        this.slots[level][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = timeout.previous = null;
+            timeout.level = -1;
+            this.pending--;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void expire(int slot) {
+        Timeout timeout = this.slots[0][slot];
+        this.slots[0][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = timeout.previous = null;
+            timeout.level = -1;
+            this.pending--;
+            if (timeout.deadline > this.currentTick) place(timeout);
+            else run(timeout);
+            timeout = next;
+        }
+    }
+
+    private void run(Timeout timeout) {
+        if (!timeout.state.compareAndSet(Timeout.WAITING, Timeout.RUNNING)) return;
+        this.expired.increment();
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            Logger.error(this.ticker.getName(), "Timer task failed: " + e.getMessage());
+        }
+        if (timeout.periodTicks > 0 && timeout.state.compareAndSet(Timeout.RUNNING, Timeout.WAITING)) {
+            timeout.deadline += timeout.periodTicks;
+            place(timeout);
+        } else {
+            timeout.state.compareAndSet(Timeout.RUNNING, Timeout.EXPIRED);
+        }
+    }
+
+    private void link(Timeout timeout, int level, int slot) {
+        Timeout head = this.slots[level][slot];
+        timeout.next = head;
+        timeout.previous = null;
+        if (head != null) head.previous = timeout;
+        this.slots[level][slot] = timeout;
+        timeout.level = level;
+        timeout.slot = slot;
+        this.pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.level < 0) return;
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else this.slots[timeout.level][timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.next = timeout.previous = null;
+        timeout.level = -1;
+        this.pending--;
+    }
+
+    /**
+     * Handle of a timer scheduled on a TimingWheel
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int RUNNING = 1;
+        private static final int EXPIRED = 2;
+        private static final int CANCELLED = 3;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long periodTicks;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // The following fields are only accessed by the ticker thread
+        private long deadline;
+        private Timeout next;
+        private Timeout previous;
+        private int level = -1;
+        private int slot;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline, long periodTicks) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            this.periodTicks = periodTicks;
+        }
+
+        /**
+         * Cancels the timer, a periodic timer that is running right now will not be run again
+         * @return true if the timer was cancelled, false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (this.state.compareAndSet(WAITING, CANCELLED)) {
+                this.wheel.cancelled.offer(this);
+                return true;
+            }
+            return this.state.compareAndSet(RUNNING, CANCELLED);
+        }
+
+        /**
+         * @return true if the timer has been cancelled
+         */
+        public boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true if the one-shot timer has already been run
+         */
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+    }
+}
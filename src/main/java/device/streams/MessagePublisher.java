@@ -0,0 +1,66 @@
+package main.java.device.streams;
+
+import main.java.utils.MQTTMessage;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reactive view of the messages received by a device.
+ * Every subscriber gets its own bounded buffer and receives messages only as fast as it requests them:
+ * the thread delivering the messages to the device never blocks, when the buffer of a slow subscriber is full
+ * the message is dropped for that subscriber only and counted, so memory stays bounded
+ */
+public class MessagePublisher implements Flow.Publisher<MQTTMessage>, AutoCloseable {
+    private final SubmissionPublisher<MQTTMessage> publisher;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates a new publisher
+     * @param bufferCapacity the maximum number of messages buffered for every subscriber
+     */
+    public MessagePublisher(int bufferCapacity) {
+        this.publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), bufferCapacity);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MQTTMessage> subscriber) {
+        this.publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Offers a message to all the subscribers, without ever blocking
+     * @param message the received message
+     */
+    public void offer(MQTTMessage message) {
+        if (!this.publisher.hasSubscribers()) return;
+        this.publisher.offer(message, (subscriber, item) -> {
+            this.dropped.increment();
+            return false;
+        });
+    }
+
+    /**
+     * @return the number of subscribers
+     */
+    public int getNumberOfSubscribers() {
+        return this.publisher.getNumberOfSubscribers();
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer of a subscriber was full
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Completes all the subscriptions, no more messages will be published
+     */
+    @Override
+    public void close() {
+        this.publisher.close();
+    }
+}
@@ -0,0 +1,165 @@
+package main.java.device.streams;
+
+import main.java.device.connections.TopicTrie;
+import main.java.utils.MQTTMessage;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Operators to build pipelines on top of the message streams of the devices.
+ * Every operator propagates the demand of its subscriber upstream, so a slow consumer at the end of the pipeline
+ * slows down the whole pipeline instead of accumulating messages
+ */
+public class MessageStreams {
+
+    private MessageStreams() {}
+
+    /**
+     * Keeps only the items accepted by the predicate
+     * @param source the upstream publisher
+     * @param predicate the condition the items must satisfy
+     * @return the filtered publisher
+     */
+    public static <T> Flow.Publisher<T> filter(Flow.Publisher<T> source, Predicate<? super T> predicate) {
+        return downstream -> source.subscribe(new Stage<T, T>(downstream) {
+            @Override
+            public void onNext(T item) {
+                if (predicate.test(item)) this.downstream.onNext(item);
+                else this.upstream.request(1);
+            }
+        });
+    }
+
+    /**
+     * Transforms every item
+     * @param source the upstream publisher
+     * @param mapper the transformation to be applied
+     * @return the transformed publisher
+     */
+    public static <T, R> Flow.Publisher<R> map(Flow.Publisher<T> source, Function<? super T, ? extends R> mapper) {
+        return downstream -> source.subscribe(new Stage<T, R>(downstream) {
+            @Override
+            public void onNext(T item) {
+                this.downstream.onNext(mapper.apply(item));
+            }
+        });
+    }
+
+    /**
+     * Groups the items in batches of the given size, the last batch may be smaller
+     * @param source the upstream publisher
+     * @param size the number of items of every batch
+     * @return the publisher of the batches
+     */
+    public static <T> Flow.Publisher<List<T>> window(Flow.Publisher<T> source, int size) {
+        return downstream -> source.subscribe(new Stage<T, List<T>>(downstream) {
+            private List<T> batch = new ArrayList<>(size);
+
+            @Override
+            protected long upstreamDemand(long n) {
+                return n >= Long.MAX_VALUE / size ? Long.MAX_VALUE : n * size;
+            }
+
+            @Override
+            public void onNext(T item) {
+                this.batch.add(item);
+                if (this.batch.size() >= size) {
+                    List<T> full = this.batch;
+                    this.batch = new ArrayList<>(size);
+                    this.downstream.onNext(full);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (!this.batch.isEmpty()) this.downstream.onNext(this.batch);
+                this.downstream.onComplete();
+            }
+        });
+    }
+
+    /**
+     * Keeps only the messages received on topics matching the filter
+     * @param source the upstream publisher
+     * @param topicFilter the topic filter, it can contain the MQTT wildcards + and #
+     * @return the filtered publisher
+     */
+    public static Flow.Publisher<MQTTMessage> onTopic(Flow.Publisher<MQTTMessage> source, String topicFilter) {
+        return filter(source, message -> TopicTrie.matches(topicFilter, message.getTopic()));
+    }
+
+    /**
+     * Keeps only the messages of the given type
+     * @param source the upstream publisher
+     * @param type the type of the messages, es. 'TRAFFIC'
+     * @return the filtered publisher
+     */
+    public static Flow.Publisher<MQTTMessage> ofType(Flow.Publisher<MQTTMessage> source, String type) {
+        return filter(source, message -> message.getPayload().getType().equals(type));
+    }
+
+    /**
+     * Transforms the inner payload of every message into a typed object
+     * @param source the upstream publisher
+     * @param decoder the transformation of the inner payload
+     * @return the publisher of the typed payloads
+     */
+    public static <R> Flow.Publisher<R> payloads(Flow.Publisher<MQTTMessage> source, Function<JSONObject, ? extends R> decoder) {
+        return map(source, message -> decoder.apply(message.getPayload().getMsg()));
+    }
+
+    /**
+     * Base class of the operators, it forwards the signals and the demand between the upstream and the downstream
+     */
+    private abstract static class Stage<T, R> implements Flow.Subscriber<T>, Flow.Subscription {
+        protected final Flow.Subscriber<? super R> downstream;
+        protected Flow.Subscription upstream;
+
+        Stage(Flow.Subscriber<? super R> downstream) {
+            this.downstream = downstream;
+        }
+
+        /**
+         * @param n the number of items requested by the downstream
+         * @return the number of items to be requested to the upstream
+         */
+        protected long upstreamDemand(long n) {
+            return n;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.upstream = subscription;
+            this.downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            this.downstream.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.upstream.request(n);
+                return;
+            }
+            this.upstream.request(upstreamDemand(n));
+        }
+
+        @Override
+        public void cancel() {
+            this.upstream.cancel();
+        }
+    }
+}
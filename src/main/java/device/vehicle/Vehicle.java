@@ -1,6 +1,8 @@
 package main.java.device.vehicle;
 
+import main.java.device.DeadReckoning;
 import main.java.device.Device;
+import main.java.device.TrafficAggregator;
 import main.java.device.vehicle.navigation.components.Navigator;
 import main.java.device.vehicle.navigation.components.RoadPoint;
 import main.java.device.vehicle.navigation.components.Route;
@@ -10,6 +12,11 @@ import main.java.utils.GlobalVars;
 import main.java.utils.Logger;
 import main.java.utils.MQTTMessage;
 import main.java.utils.Message;
+import main.java.utils.messages.AccidentEvent;
+import main.java.utils.messages.Command;
+import main.java.utils.messages.StepTick;
+import main.java.utils.messages.TrafficEvent;
+import main.java.utils.messages.TrafficSignal;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONObject;
 
@@ -25,6 +32,10 @@ public class Vehicle extends Device {
     private boolean redLight = false;
     private String lastSegment = "";
     private int lastPosition = -1;
+    private TrafficAggregator aggregator;
+    private long simTime = -1;
+    private TrafficEvent lastReport;
+    private long skippedReports = 0;
     String clientEndpoint;
     String certificateFile;
     String privateKeyFile;
@@ -46,7 +57,8 @@ public class Vehicle extends Device {
         this.awsConnect(clientEndpoint, certificateFile, privateKeyFile);
         this.connection.subscribe(GlobalVars.BASE_TOPIC + "/step");
         this.awsConnection.subscribe("vehicles/" + this.id + "/command");
-        new Thread(this).start();
+        if(TrafficAggregator.isEnabled()) this.aggregator = TrafficAggregator.getShared();
+        this.start();
     }
 
     /**
@@ -60,8 +72,8 @@ public class Vehicle extends Device {
 
         Message message = Message.createAccident(accidentID, "OPEN", this.id, segment, position);
         try {
-            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + segment + "/alerts", message.toJson());
-            this.awsConnection.publish("road/" + segment + "/alerts", message.toJson());
+            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + segment + "/alerts", message);
+            this.awsConnection.publish("road/" + segment + "/alerts", message);
         } catch (MqttException e) {
             Logger.error(this.id, "Error publishing ACCIDENT message: " + e.getMessage());
         }
@@ -76,21 +88,23 @@ public class Vehicle extends Device {
     protected void handleMessage(MQTTMessage message) {
         String topic = message.getTopic();
         Message payload = message.getPayload();
-        Logger.trace(this.id, "Received message from " + topic + ": " + payload.getMsg().toString());
-        switch (payload.getType()) {
-            case "SIMULATOR_STEP":
-                handleSimulationStep();
+        Logger.trace(this.id, "Received message of type " + payload.getType() + " from " + topic);
+        switch (payload.getMessageType()) {
+            case SIMULATOR_STEP:
+                StepTick tick = payload.getTyped();
+                this.simTime = DeadReckoning.simTime(tick.step());
+                handleSimulationStep(message.getCount());
                 break;
-            case "TRAFFIC_SIGNAL":
-                handleTrafficSignal(payload);
+            case TRAFFIC_SIGNAL:
+                handleTrafficSignal(payload.getTyped());
                 break;
-            case "COMMAND":
-                JSONObject msg = payload.getMsg();
-                if(msg.getString("command").equals("ACCIDENT")) initiateAccident();
-                if(msg.getString("command").equals("SET_SPEED")) setSpeed(msg.getInt("value"));
+            case COMMAND:
+                Command command = payload.getTyped();
+                if(command.name() == Command.Name.ACCIDENT) initiateAccident();
+                if(command.name() == Command.Name.SET_SPEED) setSpeed(command.value());
                 break;
-            case "ACCIDENT":
-                handleAccident(payload);
+            case ACCIDENT:
+                handleAccident(payload.getTyped());
                 break;
             default:
                 Logger.trace(this.id, "Unknown message type: " + payload.getType());
@@ -98,17 +112,11 @@ public class Vehicle extends Device {
         }
     }
 
-    private void handleAccident(Message payload) {
-        JSONObject msg = payload.getMsg();
-        String accidentID = msg.getString("id");
-        String status = msg.getString("event");
-        String segment = msg.getString("road-segment");
-        int position = msg.getInt("position");
-
-        if(status.equals("OPEN")){
-            Logger.info(this.id, "Received accident alert: " + accidentID + " at " + segment + " position " + position);
-        } else if(status.equals("CLOSED")){
-            Logger.info(this.id, "Received accident resolved: " + accidentID + " at " + segment + " position " + position);
+    private void handleAccident(AccidentEvent accident) {
+        if(accident.event() == AccidentEvent.Event.OPEN){
+            Logger.info(this.id, "Received accident alert: " + accident.id() + " at " + accident.segment() + " position " + accident.position());
+        } else if(accident.event() == AccidentEvent.Event.CLOSE){
+            Logger.info(this.id, "Received accident resolved: " + accident.id() + " at " + accident.segment() + " position " + accident.position());
         }
     }
 
@@ -163,36 +171,38 @@ public class Vehicle extends Device {
         handleExit(position);
     }
 
-    private void handleTrafficSignal(Message message) {
-        JSONObject msg = message.getMsg();
-
-        if(msg.getString("signal-type").equals("SPEED_LIMIT")){
+    private void handleTrafficSignal(TrafficSignal signal) {
+        if(signal.signalType() == TrafficSignal.SignalType.SPEED_LIMIT){
             // If the vehicle is in the range of the speed limit, set the speed limit accordingly
-            int start = msg.getInt("starting-position");
-            int end = msg.getInt("ending-position");
-            int limit = msg.getInt("value");
-            if(this.navigator.getCurrentPosition().getPosition() >= start && this.navigator.getCurrentPosition().getPosition() <= end){
+            int limit = signal.intValue();
+            if(this.navigator.getCurrentPosition().getPosition() >= signal.startingPosition() && this.navigator.getCurrentPosition().getPosition() <= signal.endingPosition()){
                 this.speedLimit = limit;
-                Logger.info(this.id, "Recieved signal " + msg.getString("signal-type") + ": "+ limit + " km/h");
+                Logger.info(this.id, "Recieved signal " + signal.signalType() + ": "+ limit + " km/h");
             }
-        } else if (msg.getString("signal-type").equals("TRAFFIC_LIGHT")){
+        } else if (signal.signalType() == TrafficSignal.SignalType.TRAFFIC_LIGHT){
             // If the vehicle is in the range of the traffic light that is red (HLL) and within 50m, set the speed to 0
-            int start = msg.getInt("starting-position");
+            int start = signal.startingPosition();
             if(this.navigator.getCurrentPosition().getPosition() >= start-50 && this.navigator.getCurrentPosition().getPosition() <= start + 50){
-                if(msg.getString("value").equals("HLL")) redLight = true;
-                if(msg.getString("value").equals("LLH")) redLight = false;
-                Logger.info(this.id, "Recieved signal " + msg.getString("signal-type") + ": "+ msg.getString("value"));
+                String value = signal.stringValue();
+                if(value.equals("HLL")) redLight = true;
+                if(value.equals("LLH")) redLight = false;
+                Logger.info(this.id, "Recieved signal " + signal.signalType() + ": "+ value);
             }
         }
     }
 
-    private void handleSimulationStep(){
+    /**
+     * Moves the vehicle and publishes its new position
+     * @param steps the number of simulation steps to be performed, greater than 1 when the vehicle is catching up with queued steps
+     */
+    private void handleSimulationStep(int steps){
         updateAWS();
         if(!this.navigator.isRouting() || (this.navigator.getDestinationPoint().equals(this.navigator.getCurrentPosition())))
             return;
 
         updateSpeed();
-        this.navigator.move(STEP_MS, actualSpeed);
+        this.navigator.move((long) steps * STEP_MS, actualSpeed);
+        if(steps > 1) Logger.debug(this.id, "Catching up with " + steps + " simulation steps");
 
 
         Logger.info(this.id, "Moved to: " + this.navigator.getCurrentPosition());
@@ -203,13 +213,7 @@ public class Vehicle extends Device {
 
         // If the vehicle is still in the same segment, just update the position using VEHILCE_IN
         if(roadSegment.equals(lastSegment)){
-            Message message = Message.createTraffic(this.id, this.role.name(), "VEHICLE_IN", roadSegment, segmentPosition);
-
-            try {
-                this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + roadSegment + "/traffic", message.toJson());
-            } catch (MqttException e) {
-                Logger.error(this.id, "Error publishing VEHICLE_IN message: " + e.getMessage());
-            }
+            publishTraffic(TrafficEvent.Action.VEHICLE_IN, roadSegment, segmentPosition);
         } else {
             // Publish vehicle leaving previous segment
             if(!lastSegment.equals("")) handleExit(new RoadPoint(lastSegment, lastPosition));
@@ -237,14 +241,7 @@ public class Vehicle extends Device {
 
         // Publish vehicle entering new segment
         String roadSegment = position.getRoadSegment();
-        int segmentPosition = position.getPosition();
-        Message message = Message.createTraffic(this.id, this.role.name(), "VEHICLE_IN", roadSegment, segmentPosition);
-
-        try {
-            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + roadSegment + "/traffic", message.toJson());
-        } catch (MqttException e) {
-            Logger.error(this.id, "Error publishing VEHICLE_IN message: " + e.getMessage());
-        }
+        publishTraffic(TrafficEvent.Action.VEHICLE_IN, roadSegment, position.getPosition());
         Logger.info(this.id, "Entered road segment " + roadSegment);
     }
 
@@ -260,15 +257,40 @@ public class Vehicle extends Device {
 
         // Publish vehicle leaving previous segment
         String roadSegment = position.getRoadSegment();
-        int segmentPosition = position.getPosition();
-        Message message = Message.createTraffic(this.id, this.role.name(), "VEHICLE_OUT", roadSegment, segmentPosition);
+        publishTraffic(TrafficEvent.Action.VEHICLE_OUT, roadSegment, position.getPosition());
+        Logger.info(this.id, "Exited road segment " + roadSegment);
+    }
 
+    /**
+     * Publishes the traffic of the vehicle, or hands it to the traffic aggregator of the process if batching is enabled
+     * @param action whether the vehicle is in the segment or leaving it
+     * @param roadSegment the road segment
+     * @param segmentPosition the position of the vehicle in the segment in meters
+     */
+    private void publishTraffic(TrafficEvent.Action action, String roadSegment, int segmentPosition) {
+        TrafficEvent event;
+        if(DeadReckoning.isEnabled() && this.simTime >= 0){
+            // A vehicle that reached its destination does not move anymore
+            boolean arrived = this.navigator.getDestinationPoint().equals(this.navigator.getCurrentPosition());
+            event = new TrafficEvent(this.id, this.role, action, roadSegment, segmentPosition, arrived ? 0 : this.actualSpeed, this.simTime);
+            if(!DeadReckoning.needsReport(this.lastReport, event)){
+                this.skippedReports++;
+                return;
+            }
+            this.lastReport = event;
+        } else {
+            event = new TrafficEvent(this.id, this.role, action, roadSegment, segmentPosition);
+        }
+        if(this.aggregator != null){
+            this.aggregator.add(event);
+            return;
+        }
+        Message message = Message.createTraffic(event);
         try {
-            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + roadSegment + "/traffic", message.toJson());
+            this.connection.publish(GlobalVars.BASE_TOPIC + "/road/" + roadSegment + "/traffic", message);
         } catch (MqttException e) {
-            Logger.error(this.id, "Error publishing VEHICLE_OUT message: " + e.getMessage());
+            Logger.error(this.id, "Error publishing " + action + " message: " + e.getMessage());
         }
-        Logger.info(this.id, "Exited road segment " + roadSegment);
     }
 
     private void updateAWS(){
@@ -278,7 +300,7 @@ public class Vehicle extends Device {
         update.put("actual-speed", this.actualSpeed);
         update.put("cruise-speed", this.cruiseSpeed);
 
-        this.awsConnection.publish("vehicles/"+this.id+"/status", update);
+        this.awsConnection.publishStatus("vehicles/"+this.id+"/status", update);
     }
 
     /**
@@ -292,6 +314,13 @@ public class Vehicle extends Device {
             Logger.debug(this.id, "Speed updated to " + this.actualSpeed + " km/h");
     }
 
+    /**
+     * @return the number of positions not published because the receivers could extrapolate them
+     */
+    public long getSkippedReports(){
+        return this.skippedReports;
+    }
+
     /**
      * This method returns the current position of the vehicle
      * @return the current position of the vehicle
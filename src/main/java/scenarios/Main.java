@@ -1,16 +1,22 @@
 package main.java.scenarios;
 
 import main.java.device.AccidentManager;
+import main.java.device.Device;
 import main.java.device.InfoPanel;
 import main.java.device.RoadManager;
+import main.java.device.connections.Transports;
+import main.java.device.runtime.DeviceLauncher;
 import main.java.device.vehicle.SpecialVehicle;
 import main.java.device.vehicle.Vehicle;
 import main.java.device.vehicle.navigation.components.RoadPoint;
 import main.java.device.vehicle.navigation.components.Route;
 import main.java.utils.GlobalVars;
 import main.java.utils.Logger;
+import main.java.utils.Simulator;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 public class Main {
@@ -20,6 +26,12 @@ public class Main {
             return;
         }
 
+        if (Transports.isLoopback()) {
+            // Without network the steps and the road status are produced in this process
+            GlobalVars.setRoadStatusProvider(GlobalVars::syntheticRoadStatus);
+            Simulator.startInBackground(GlobalVars.BROKER_ADDRESS, Long.getLong("smartcity.simulator.period", GlobalVars.STEP_MS));
+        }
+
         switch (args[0]) {
             case "--congestion":
                 if (args.length != 5) {
@@ -81,11 +93,19 @@ public class Main {
         infoPanel.init();
 
         Queue<Vehicle> vehicles = new LinkedList<>();
-
-        // Increment congestion
+        List<String> vehicleIds = new ArrayList<>(numberOfCars);
         for(int i = 0; i < numberOfCars; i++) {
             // Format number in four digits
-            String vehicleId = String.format("%04d", i) + "AAA";
+            vehicleIds.add(String.format("%04d", i) + "AAA");
+        }
+
+        if (Integer.getInteger("smartcity.startup.parallelism", 0) > 0) {
+            // Bring up all the vehicles at once instead of one per second, the ones that fail are retried below
+            vehicleIds = bulkVehicleCreator(vehicles, vehicleIds, roadSegment, startingPoint, endPoint);
+        }
+
+        // Increment congestion
+        for(String vehicleId : vehicleIds) {
             RoadPoint start = new RoadPoint(roadSegment, 0);
             Route route = new Route();
             route.addRouteFragment(roadSegment, startingPoint, endPoint);
@@ -109,6 +129,36 @@ public class Main {
         }
     }
 
+    /**
+     * Creates the vehicles of the congestion scenario and initializes them concurrently, connecting to AWS only when
+     * they first need it
+     * @param vehicles the queue where the started vehicles are added
+     * @param vehicleIds the ids of the vehicles to be created
+     * @return the ids of the vehicles that failed to start, which were stopped
+     */
+    private static List<String> bulkVehicleCreator(Queue<Vehicle> vehicles, List<String> vehicleIds, String roadSegment, int startingPoint, int endPoint) throws Exception {
+        List<Vehicle> created = new ArrayList<>(vehicleIds.size());
+        for(String vehicleId : vehicleIds) {
+            Route route = new Route();
+            route.addRouteFragment(roadSegment, startingPoint, endPoint);
+            Vehicle vehicle = new Vehicle(vehicleId, Vehicle.VehicleRole.PrivateUsage, 60, new RoadPoint(roadSegment, 0), GlobalVars.AWS_ENDPOINT, GlobalVars.VE_CERTIFICATE, GlobalVars.VE_KEY);
+            vehicle.setRoute(route);
+            vehicle.startRoute();
+            vehicle.setLazyAwsConnect(true);
+            created.add(vehicle);
+        }
+        List<Device> failed = DeviceLauncher.fromProperties().launch(created);
+        List<String> failedIds = new ArrayList<>(failed.size());
+        for(Device device : failed) {
+            // A failed vehicle may be half connected, it must release its client ids before being created again
+            device.disconnect();
+            failedIds.add(device.getId());
+        }
+        created.removeAll(failed);
+        vehicles.addAll(created);
+        return failedIds;
+    }
+
     /**
      * Scenario where an ambulance is sent down the road and the info panel shows it's passing by
      * @throws Exception
@@ -229,5 +279,20 @@ public class Main {
         System.out.println("\t\t- The codedPath for the vehicle has to be in the following format: R5s1,0,580; or R5s1,0,580;R5s2,0,580;... etc");
         System.out.println("\t\t- The role of the vehicle has to be one of the following: PrivateUsage, Bus, Police, Taxi, Ambulance");
         System.out.println("\t\t- There is no need to use apices to write the arguments, just write them separated by spaces in the correct order");
+        System.out.println("\t\t- Devices can be hosted on virtual threads or on a fixed pool of workers by starting the JVM with -Dsmartcity.execution=virtual or -Dsmartcity.execution=actor");
+        System.out.println("\t\t- All the devices of the JVM can share the same broker connection by starting it with -Dsmartcity.mqtt.multiplex=true");
+        System.out.println("\t\t- Scenarios can run without network on in-memory brokers by starting the JVM with -Dsmartcity.transport=loopback, steps are then published every -Dsmartcity.simulator.period milliseconds");
+        System.out.println("\t\t- Publishes are asynchronous, the publishes in flight per client are bounded by -Dsmartcity.publish.window and -Dsmartcity.publish.backlog, with -Dsmartcity.publish.overflow=block|drop_oldest|fail when both are full");
+        System.out.println("\t\t- Unacknowledged QoS 1 messages (es. accident alerts) are kept in memory, or in a shared memory-mapped journal with -Dsmartcity.mqtt.persistence=journal (file set with -Dsmartcity.mqtt.journal), resumed after a restart by clients with the same id (-Dsmartcity.node for shared connections)");
+        System.out.println("\t\t- Lost connections are retried with a backoff between -Dsmartcity.reconnect.base and -Dsmartcity.reconnect.max milliseconds, publishes are buffered meanwhile (-Dsmartcity.publish.outageBuffer)");
+        System.out.println("\t\t- With -Dsmartcity.startup.parallelism=<n> the congestion scenario starts all its vehicles at once, n at a time, connecting to AWS lazily (-Dsmartcity.aws.lazy=true does it for all the devices)");
+        System.out.println("\t\t- All the devices with the same credentials can share a few AWS connections by starting the JVM with -Dsmartcity.aws.gateway=true (-Dsmartcity.aws.connections=<n>)");
+        System.out.println("\t\t- Messages are published on the broker as JSON, or in a compact binary format with -Dsmartcity.wire=binary; devices read both, AWS always receives JSON");
+        System.out.println("\t\t- Alerts and commands received twice (es. from the broker and from AWS) are dropped by id, remembered in an LRU of -Dsmartcity.dedup.lru ids and a Bloom filter over -Dsmartcity.dedup.window milliseconds");
+        System.out.println("\t\t- Published messages carry their producer and a sequence number per topic, vehicle positions overtaken by newer ones are dropped and the missing ones counted as lost");
+        System.out.println("\t\t- With -Dsmartcity.traffic.batch=true the vehicles of the JVM publish their traffic once per step and segment in a single TRAFFIC_BATCH message");
+        System.out.println("\t\t- With -Dsmartcity.telemetry.uplink=true the status reported to AWS at every step is uploaded every -Dsmartcity.telemetry.flush milliseconds, only the changed fields, batched for all the devices of the JVM");
+        System.out.println("\t\t- With -Dsmartcity.publish.onChange=true signals and status are not republished while they do not change, except every -Dsmartcity.publish.heartbeat milliseconds (-Dsmartcity.publish.retained=true to also retain them on the broker)");
+        System.out.println("\t\t- With -Dsmartcity.traffic.deadReckoning=true vehicles publish their position only when their speed or segment changes, when it drifts more than -Dsmartcity.traffic.drift meters from the extrapolated one, or every -Dsmartcity.traffic.heartbeat steps");
     }
 }
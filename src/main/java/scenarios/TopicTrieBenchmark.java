@@ -0,0 +1,51 @@
+package main.java.scenarios;
+
+import main.java.device.connections.TopicTrie;
+import main.java.utils.GlobalVars;
+import main.java.utils.Logger;
+
+/**
+ * Benchmark of the dispatch cost of the TopicTrie with a city-sized number of subscriptions.
+ * The subscriptions mimic the ones of the devices: one command topic per vehicle, the signals and info topics of
+ * every road segment, the step topic and the wildcard alerts topic of the managers
+ * Usage: TopicTrieBenchmark [numberOfSubscriptions] [numberOfLookups]
+ */
+public class TopicTrieBenchmark {
+    public static void main(String[] args) {
+        int subscriptions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int segments = Math.max(1, subscriptions / 100);
+
+        TopicTrie<Integer> trie = new TopicTrie<>();
+        long start = System.nanoTime();
+        int vehicles = subscriptions - 2 * segments - 2;
+        for (int i = 0; i < vehicles; i++) trie.subscribe("vehicles/" + String.format("%06d", i) + "AAA/command", i);
+        for (int i = 0; i < segments; i++) {
+            trie.subscribe(GlobalVars.BASE_TOPIC + "/road/R" + i + "s1/signals", -i);
+            trie.subscribe(GlobalVars.BASE_TOPIC + "/road/R" + i + "s1/info", -i);
+        }
+        trie.subscribe(GlobalVars.BASE_TOPIC + "/step", -1);
+        trie.subscribe(GlobalVars.BASE_TOPIC + "/road/+/alerts", -2);
+        Logger.info("Benchmark", trie.size() + " subscriptions created in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        String[] topics = new String[1024];
+        for (int i = 0; i < topics.length; i++) {
+            switch (i % 4) {
+                case 0 -> topics[i] = "vehicles/" + String.format("%06d", (i * 7919) % vehicles) + "AAA/command";
+                case 1 -> topics[i] = GlobalVars.BASE_TOPIC + "/road/R" + (i % segments) + "s1/info";
+                case 2 -> topics[i] = GlobalVars.BASE_TOPIC + "/road/R" + (i % segments) + "s1/alerts";
+                default -> topics[i] = GlobalVars.BASE_TOPIC + "/step";
+            }
+        }
+
+        int[] sink = new int[1];
+        // Warm up the JIT before measuring
+        for (int i = 0; i < lookups / 10; i++) trie.match(topics[i & 1023], s -> sink[0] += s);
+        start = System.nanoTime();
+        long visits = 0;
+        for (int i = 0; i < lookups; i++) visits += trie.match(topics[i & 1023], s -> sink[0] += s);
+        long elapsed = System.nanoTime() - start;
+
+        Logger.info("Benchmark", lookups + " lookups, " + visits + " deliveries, " + String.format("%.1f", (double) elapsed / lookups) + " ns per lookup (" + sink[0] + ")");
+    }
+}
@@ -0,0 +1,431 @@
+package main.java.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the messages whose types are defined by Message.
+ * A binary payload starts with a magic byte, that can never start a JSON document, followed by the version of the
+ * encoding and the code of the message type, so a receiver can always tell binary and JSON payloads apart and
+ * reject versions or types it does not know. Then come the timestamp, the id (since version 2, empty when the message
+ * has no unique id), the producer and the sequence number (since version 3, empty and 0 when the message was not
+ * stamped), a bitmap of the fields present and the fields, in the order of the schema of the type (the speed and the
+ * simulation time of the traffic were appended in version 4): integers as zig-zag varints, road segments named like
+ * 'R5s1' as two varints, and strings as an index in the dictionary of known values of the field or as a literal. Lists of entries, es. the vehicles of a batch, are written as their
+ * length followed by every entry with its own bitmap and fields.
+ * A message is written with the lowest version that has all the parts it uses, es. a traffic without speed with
+ * version 3, so receivers that do not know the newest version still decode the messages they understand.
+ * Messages that do not fit the schema of their type (unknown keys or values of another kind) are not encoded,
+ * and the sender falls back to JSON. New fields must only be appended to the schemas, with the version they appeared in
+ */
+public class BinaryCodec {
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final byte VERSION = 4;
+
+    private static final String[] NO_TOKENS = {};
+    private static final String[] ROLES = {"PrivateUsage", "Bus", "Police", "Taxi", "Ambulance"};
+    private static final String[] STATUSES = {"Free_Flow", "Mostly_Free_Flow", "Limited_Manouvers", "Restricted_Manouvers", "No_Manouvers", "Collapsed"};
+
+    private static final Schema[] schemas = {
+            new Schema(1, "SIMULATOR_STEP",
+                    text("simulator", "PTPaterna"), integer("step")),
+            new Schema(2, "ROAD_STATUS",
+                    segment("code"), text("rt", "road-segment"), segment("road-segment"), text("link"), text("road"),
+                    integer("length"), integer("start-kp"), integer("end-kp"), integer("max-speed"),
+                    integer("current-max-speed"), integer("capacity"), integer("num-vehicles"), integer("density"),
+                    text("status", STATUSES)),
+            new Schema(3, "TRAFFIC_SIGNAL",
+                    text("id"), text("rt", "traffic-signal"), text("signal-type", "TRAFFIC_LIGHT", "SPEED_LIMIT"),
+                    segment("road-segment"), integer("starting-position"), integer("ending-position"),
+                    value("value", "RED", "YELLOW", "GREEN")),
+            new Schema(4, "TRAFFIC",
+                    text("vehicle-id"), text("vehicle-role", ROLES), text("action", "VEHICLE_IN", "VEHICLE_OUT"),
+                    segment("road-segment"), integer("position"), integer("speed").since(4), integer("sim-time").since(4)),
+            new Schema(5, "ACCIDENT",
+                    text("event", "OPEN", "CLOSE"), text("id"), text("rt", "accident"), text("vehicle"),
+                    segment("road-segment"), integer("position")),
+            new Schema(6, "TIMER",
+                    text("name")),
+            new Schema(7, "TRAFFIC_BATCH",
+                    segment("road-segment"),
+                    entries("vehicles", text("vehicle-id"), text("vehicle-role", ROLES), text("action", "VEHICLE_IN", "VEHICLE_OUT"), integer("position"),
+                            integer("speed").since(4), integer("sim-time").since(4)))
+    };
+    private static final Map<String, Schema> schemasByType = new HashMap<>();
+    private static final Schema[] schemasByCode = new Schema[schemas.length + 1];
+
+    static {
+        for (Schema schema : schemas) {
+            schemasByType.put(schema.type, schema);
+            schemasByCode[schema.code] = schema;
+        }
+    }
+
+    private BinaryCodec() {}
+
+    /**
+     * @param payload the payload received from a broker
+     * @return true if the payload is binary encoded, false if it is JSON
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] == MAGIC;
+    }
+
+    /**
+     * @param type the type of a message
+     * @return true if messages of the type can be binary encoded
+     */
+    public static boolean supports(String type) {
+        return schemasByType.containsKey(type);
+    }
+
+    /**
+     * Encodes a message
+     * @param message the message
+     * @return the encoded message, or null if the message does not fit the schema of its type
+     */
+    public static byte[] encode(Message message) {
+        Schema schema = schemasByType.get(message.getType());
+        if (schema == null) return null;
+        int version = version(schema.fields, message.getMsg());
+        if (message.getProducer() != null) version = Math.max(version, 3);
+        else if (message.hasUniqueId()) version = Math.max(version, 2);
+        Writer out = new Writer();
+        out.write(MAGIC);
+        out.write((byte) version);
+        out.write(schema.code);
+        out.writeVarint(message.getTimestamp());
+        if (version >= 2) out.writeString(message.hasUniqueId() ? message.getId() : "");
+        if (version >= 3) {
+            out.writeString(message.getProducer() != null ? message.getProducer() : "");
+            out.writeVarint(message.getSequence());
+        }
+        if (!writeObject(out, schema.fields, message.getMsg())) return null;
+        return out.toByteArray();
+    }
+
+    private static boolean writeObject(Writer out, Field[] fields, JSONObject object) {
+        long present = 0;
+        for (String key : object.keySet()) {
+            int index = indexOf(fields, key);
+            if (index < 0) return false;
+            present |= 1L << index;
+        }
+        out.writeVarint(present);
+        for (Field field : fields) {
+            if (!object.has(field.key)) continue;
+            if (!field.write(out, object.get(field.key))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the lowest version of the encoding having all the fields of the object
+     */
+    private static int version(Field[] fields, JSONObject object) {
+        int version = 1;
+        for (Field field : fields) {
+            Object value = object.opt(field.key);
+            if (value == null) continue;
+            version = Math.max(version, field.since);
+            if (field.kind == Kind.ENTRIES && value instanceof JSONArray) {
+                for (Object entry : (JSONArray) value) {
+                    if (entry instanceof JSONObject) version = Math.max(version, version(field.fields, (JSONObject) entry));
+                }
+            }
+        }
+        return version;
+    }
+
+    private static JSONObject readObject(Reader in, Field[] fields) {
+        long present = in.readVarint();
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < fields.length; i++) {
+            if ((present & (1L << i)) == 0) continue;
+            Field field = fields[i];
+            object.put(field.key, field.read(in));
+        }
+        return object;
+    }
+
+    private static int indexOf(Field[] fields, String key) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].key.equals(key)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a binary encoded message
+     * @param payload the encoded message
+     * @return the message
+     * @throws IllegalArgumentException if the payload is not binary, or its version or type are not known
+     */
+    public static Message decode(byte[] payload) {
+        if (!isBinary(payload) || payload.length < 3) throw new IllegalArgumentException("Not a binary message");
+        if (payload[1] > VERSION || payload[1] < 1) throw new IllegalArgumentException("Unsupported binary message version " + payload[1]);
+        int code = payload[2];
+        if (code < 1 || code >= schemasByCode.length) throw new IllegalArgumentException("Unknown binary message type " + code);
+        Schema schema = schemasByCode[code];
+        Reader in = new Reader(payload, 3);
+        long timestamp = in.readVarint();
+        String id = payload[1] >= 2 ? in.readString() : "";
+        String producer = payload[1] >= 3 ? in.readString() : "";
+        long sequence = payload[1] >= 3 ? in.readVarint() : 0;
+        JSONObject msg = readObject(in, schema.fields);
+        Message message = new Message(schema.type, id.isEmpty() ? null : id, timestamp, msg);
+        return producer.isEmpty() ? message : message.withSequence(producer, sequence);
+    }
+
+    private static Field integer(String key) {
+        return new Field(key, Kind.INTEGER, NO_TOKENS);
+    }
+
+    private static Field text(String key, String... tokens) {
+        return new Field(key, Kind.TEXT, tokens);
+    }
+
+    private static Field segment(String key) {
+        return new Field(key, Kind.SEGMENT, NO_TOKENS);
+    }
+
+    private static Field value(String key, String... tokens) {
+        return new Field(key, Kind.VALUE, tokens);
+    }
+
+    private static Field entries(String key, Field... fields) {
+        return new Field(key, Kind.ENTRIES, NO_TOKENS, fields);
+    }
+
+    private enum Kind { INTEGER, TEXT, SEGMENT, VALUE, ENTRIES }
+
+    private static class Schema {
+        private final byte code;
+        private final String type;
+        private final Field[] fields;
+
+        Schema(int code, String type, Field... fields) {
+            this.code = (byte) code;
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    private static class Field {
+        private final String key;
+        private final Kind kind;
+        private final String[] tokens;
+        private final Field[] fields;
+        private int since = 1;
+
+        Field(String key, Kind kind, String[] tokens) {
+            this(key, kind, tokens, null);
+        }
+
+        Field(String key, Kind kind, String[] tokens, Field[] fields) {
+            this.key = key;
+            this.kind = kind;
+            this.tokens = tokens;
+            this.fields = fields;
+        }
+
+        /**
+         * @param version the version of the encoding that appended the field to its schema
+         * @return the field
+         */
+        Field since(int version) {
+            this.since = version;
+            return this;
+        }
+
+        boolean write(Writer out, Object value) {
+            switch (this.kind) {
+                case INTEGER:
+                    if (!(value instanceof Integer) && !(value instanceof Long)) return false;
+                    out.writeSignedVarint(((Number) value).longValue());
+                    return true;
+                case TEXT:
+                    if (!(value instanceof String)) return false;
+                    writeText(out, (String) value);
+                    return true;
+                case SEGMENT:
+                    if (!(value instanceof String)) return false;
+                    writeSegment(out, (String) value);
+                    return true;
+                case ENTRIES:
+                    if (!(value instanceof JSONArray)) return false;
+                    JSONArray entries = (JSONArray) value;
+                    out.writeVarint(entries.length());
+                    for (Object entry : entries) {
+                        if (!(entry instanceof JSONObject) || !writeObject(out, this.fields, (JSONObject) entry)) return false;
+                    }
+                    return true;
+                default:
+                    // A value is either an integer (es. a speed limit) or a string (es. the color of a light)
+                    if (value instanceof Integer || value instanceof Long) {
+                        out.write((byte) 0);
+                        out.writeSignedVarint(((Number) value).longValue());
+                        return true;
+                    }
+                    if (!(value instanceof String)) return false;
+                    out.write((byte) 1);
+                    writeText(out, (String) value);
+                    return true;
+            }
+        }
+
+        Object read(Reader in) {
+            switch (this.kind) {
+                case INTEGER:
+                    return narrow(in.readSignedVarint());
+                case TEXT:
+                    return readText(in);
+                case SEGMENT:
+                    return readSegment(in);
+                case ENTRIES:
+                    int length = (int) in.readVarint();
+                    if (length < 0 || length > in.remaining()) throw new IllegalArgumentException("Truncated binary message");
+                    JSONArray entries = new JSONArray();
+                    for (int i = 0; i < length; i++) entries.put(readObject(in, this.fields));
+                    return entries;
+                default:
+                    return in.readByte() == 0 ? narrow(in.readSignedVarint()) : readText(in);
+            }
+        }
+
+        private void writeText(Writer out, String value) {
+            // 0 is followed by a literal, n > 0 is the token n - 1
+            for (int i = 0; i < this.tokens.length; i++) {
+                if (this.tokens[i].equals(value)) {
+                    out.writeVarint(i + 1);
+                    return;
+                }
+            }
+            out.writeVarint(0);
+            out.writeString(value);
+        }
+
+        private String readText(Reader in) {
+            int token = (int) in.readVarint();
+            if (token == 0) return in.readString();
+            if (token > this.tokens.length) throw new IllegalArgumentException("Unknown token " + token + " for " + this.key);
+            return this.tokens[token - 1];
+        }
+
+        private static void writeSegment(Writer out, String value) {
+            // Segments named R<road>s<segment> are written as (road << 1 | 1) and segment, the others as (length << 1) and the literal
+            int separator = value.indexOf('s', 1);
+            if (value.length() > 3 && value.charAt(0) == 'R' && separator > 1 && isNumber(value, 1, separator) && isNumber(value, separator + 1, value.length())) {
+                out.writeVarint(Long.parseLong(value, 1, separator, 10) << 1 | 1);
+                out.writeVarint(Long.parseLong(value, separator + 1, value.length(), 10));
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint((long) bytes.length << 1);
+            out.write(bytes);
+        }
+
+        private static String readSegment(Reader in) {
+            long header = in.readVarint();
+            if ((header & 1) == 1) return "R" + (header >>> 1) + "s" + in.readVarint();
+            return in.readString((int) (header >>> 1));
+        }
+
+        private static boolean isNumber(String value, int from, int to) {
+            if (from >= to || to - from > 9) return false;
+            // Leading zeros would be lost
+            if (value.charAt(from) == '0' && to - from > 1) return false;
+            for (int i = from; i < to; i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') return false;
+            }
+            return true;
+        }
+
+        private static Object narrow(long value) {
+            return value == (int) value ? (Object) (int) value : (Object) value;
+        }
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(64);
+        }
+
+        void write(byte value) {
+            super.write(value);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                super.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            super.write((int) value);
+        }
+
+        void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        int remaining() {
+            return this.bytes.length - this.position;
+        }
+
+        byte readByte() {
+            if (this.position >= this.bytes.length) throw new IllegalArgumentException("Truncated binary message");
+            return this.bytes[this.position++];
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            return readString((int) readVarint());
+        }
+
+        String readString(int length) {
+            if (length < 0 || this.position + length > this.bytes.length) throw new IllegalArgumentException("Truncated binary message");
+            String value = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+    }
+}
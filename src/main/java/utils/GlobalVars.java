@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.function.Function;
 
 public class GlobalVars {
     public static final String BROKER_ADDRESS = "tcp://tambori.dsic.upv.es:10083";
@@ -26,7 +27,40 @@ public class GlobalVars {
     public static final String MA_CERTIFICATE = "certs/manager/8f5d687755b88a9ebcb8df8cf3a3dc6b54adde0e952163654e728e4d641c5068-certificate.pem.crt";
     public static final String MA_KEY = "certs/manager/8f5d687755b88a9ebcb8df8cf3a3dc6b54adde0e952163654e728e4d641c5068-private.pem.key";
 
+    private static volatile Function<String, JSONObject> roadStatusProvider = GlobalVars::fetchRoadStatus;
+
+    /**
+     * Returns the current status of a road segment
+     * @param roadSegment the name of the road segment
+     * @return the status, with at least the fields 'status' and 'current-max-speed'
+     */
     public static JSONObject getRoadStatus(String roadSegment){
+        return roadStatusProvider.apply(roadSegment);
+    }
+
+    /**
+     * Replaces the source of the road status, by default the REST service of the simulator
+     * @param provider the function returning the status of a road segment
+     */
+    public static void setRoadStatusProvider(Function<String, JSONObject> provider){
+        roadStatusProvider = provider;
+    }
+
+    /**
+     * Returns a free flowing status for any road segment, used when running without network
+     * @param roadSegment the name of the road segment
+     * @return the status of the road segment
+     */
+    public static JSONObject syntheticRoadStatus(String roadSegment){
+        JSONObject result = new JSONObject();
+        result.put("id", roadSegment);
+        result.put("status", "Free_Flow");
+        result.put("max-speed", 50);
+        result.put("current-max-speed", 50);
+        return result;
+    }
+
+    private static JSONObject fetchRoadStatus(String roadSegment){
         JSONObject result = new JSONObject();
         try {
             URL url = new URL("http://tambori.dsic.upv.es:10082/segment/" + roadSegment);
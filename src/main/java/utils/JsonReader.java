@@ -0,0 +1,311 @@
+package main.java.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader of a JSON document held in a byte array, decoding values straight from the bytes.
+ * Values that are not needed can be skipped without being decoded, and their bounds can be kept to decode them later.
+ * Errors are reported with the JSONException of org.json, like the parser it replaces
+ */
+public class JsonReader {
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    /**
+     * @param bytes the UTF-8 encoded document
+     */
+    public JsonReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param bytes the bytes containing the document
+     * @param from the index of the first byte of the document
+     * @param to the index after the last byte of the document
+     */
+    public JsonReader(byte[] bytes, int from, int to) {
+        this.bytes = bytes;
+        this.position = from;
+        this.end = to;
+    }
+
+    /**
+     * Skips the whitespace before the next token
+     * @return the index of the next token
+     */
+    public int mark() {
+        while (this.position < this.end) {
+            byte b = this.bytes[this.position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') break;
+            this.position++;
+        }
+        return this.position;
+    }
+
+    /**
+     * @return the index after the last token read
+     */
+    public int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return the first byte of the next token, 0 at the end of the document
+     */
+    public byte peek() {
+        return mark() < this.end ? this.bytes[this.position] : 0;
+    }
+
+    public void beginObject() {
+        expect('{');
+    }
+
+    public void endObject() {
+        expect('}');
+    }
+
+    public void beginArray() {
+        expect('[');
+    }
+
+    public void endArray() {
+        expect(']');
+    }
+
+    /**
+     * Consumes the separator before the next name or element, if any
+     * @return true if the current object or array has more members
+     */
+    public boolean hasNext() {
+        byte b = peek();
+        if (b == ',') {
+            this.position++;
+            return true;
+        }
+        return b != '}' && b != ']' && b != 0;
+    }
+
+    /**
+     * Reads the name of the next member of an object, with its colon
+     * @return the name
+     */
+    public String nextName() {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    public String nextString() {
+        expect('"');
+        int start = this.position;
+        while (this.position < this.end) {
+            byte b = this.bytes[this.position];
+            if (b == '"') {
+                String value = new String(this.bytes, start, this.position - start, StandardCharsets.UTF_8);
+                this.position++;
+                return value;
+            }
+            if (b == '\\') return nextEscapedString(start);
+            this.position++;
+        }
+        throw error("Unterminated string");
+    }
+
+    public long nextLong() {
+        Object value = nextNumber();
+        if (value instanceof Double) return ((Double) value).longValue();
+        return ((Number) value).longValue();
+    }
+
+    public int nextInt() {
+        return (int) nextLong();
+    }
+
+    public boolean nextBoolean() {
+        if (matchLiteral("true")) return true;
+        if (matchLiteral("false")) return false;
+        throw error("Expected a boolean");
+    }
+
+    /**
+     * Reads the next number
+     * @return an Integer or a Long when the number has no fraction nor exponent, a Double otherwise
+     */
+    public Number nextNumber() {
+        int start = mark();
+        boolean negative = false;
+        if (this.position < this.end && this.bytes[this.position] == '-') {
+            negative = true;
+            this.position++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (this.position < this.end) {
+            byte b = this.bytes[this.position];
+            if (b < '0' || b > '9') break;
+            value = value * 10 + (b - '0');
+            digits++;
+            this.position++;
+        }
+        if (digits == 0) throw error("Expected a number");
+        byte next = this.position < this.end ? this.bytes[this.position] : 0;
+        if (next == '.' || next == 'e' || next == 'E' || digits > 18) {
+            // Fractions, exponents and very long numbers are rare, leave them to the JDK
+            while (this.position < this.end && isNumberPart(this.bytes[this.position])) this.position++;
+            return Double.parseDouble(new String(this.bytes, start, this.position - start, StandardCharsets.US_ASCII));
+        }
+        if (negative) value = -value;
+        return value == (int) value ? (Number) (int) value : (Number) value;
+    }
+
+    /**
+     * Reads the next value, decoding objects and arrays as the org.json types
+     * @return the value, JSONObject.NULL for null
+     */
+    public Object nextValue() {
+        switch (peek()) {
+            case '"':
+                return nextString();
+            case '{':
+                return nextObject();
+            case '[':
+                return nextArray();
+            case 't':
+            case 'f':
+                return nextBoolean();
+            case 'n':
+                if (matchLiteral("null")) return JSONObject.NULL;
+                throw error("Unexpected token");
+            default:
+                return nextNumber();
+        }
+    }
+
+    public JSONObject nextObject() {
+        JSONObject object = new JSONObject();
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            object.put(name, nextValue());
+        }
+        endObject();
+        return object;
+    }
+
+    public JSONArray nextArray() {
+        JSONArray array = new JSONArray();
+        beginArray();
+        while (hasNext()) array.put(nextValue());
+        endArray();
+        return array;
+    }
+
+    /**
+     * Skips the next value without decoding it
+     */
+    public void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+            return;
+        }
+        if (b != '{' && b != '[') {
+            if (b == 't' || b == 'f' || b == 'n') {
+                while (this.position < this.end && this.bytes[this.position] >= 'a' && this.bytes[this.position] <= 'z') this.position++;
+            } else {
+                nextNumber();
+            }
+            return;
+        }
+        int depth = 0;
+        while (this.position < this.end) {
+            b = this.bytes[this.position];
+            if (b == '"') {
+                skipString();
+                continue;
+            }
+            this.position++;
+            if (b == '{' || b == '[') depth++;
+            else if ((b == '}' || b == ']') && --depth == 0) return;
+        }
+        throw error("Unterminated value");
+    }
+
+    private void skipString() {
+        this.position++;
+        while (this.position < this.end) {
+            byte b = this.bytes[this.position++];
+            if (b == '\\') this.position++;
+            else if (b == '"') return;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String nextEscapedString(int start) {
+        StringBuilder value = new StringBuilder(this.position - start + 16);
+        int chunk = start;
+        while (this.position < this.end) {
+            byte b = this.bytes[this.position];
+            if (b == '"') {
+                value.append(new String(this.bytes, chunk, this.position - chunk, StandardCharsets.UTF_8));
+                this.position++;
+                return value.toString();
+            }
+            if (b != '\\') {
+                this.position++;
+                continue;
+            }
+            value.append(new String(this.bytes, chunk, this.position - chunk, StandardCharsets.UTF_8));
+            if (this.position + 1 >= this.end) break;
+            byte escaped = this.bytes[this.position + 1];
+            this.position += 2;
+            switch (escaped) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (this.position + 4 > this.end) throw error("Truncated unicode escape");
+                    try {
+                        value.append((char) Integer.parseInt(new String(this.bytes, this.position, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    this.position += 4;
+                    break;
+                default: value.append((char) escaped);
+            }
+            chunk = this.position;
+        }
+        throw error("Unterminated string");
+    }
+
+    private boolean matchLiteral(String literal) {
+        int start = mark();
+        if (start + literal.length() > this.end) return false;
+        for (int i = 0; i < literal.length(); i++) {
+            if (this.bytes[start + i] != literal.charAt(i)) return false;
+        }
+        this.position += literal.length();
+        return true;
+    }
+
+    private void expect(char token) {
+        if (peek() != token) throw error("Expected '" + token + "'");
+        this.position++;
+    }
+
+    private static boolean isNumberPart(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-';
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at " + this.position);
+    }
+}
@@ -0,0 +1,260 @@
+package main.java.utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streaming writer of a JSON document, encoding the values straight to UTF-8 bytes without building a tree first.
+ * Separators are added automatically, so the members of an object are written just as a name followed by a value
+ */
+public class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buffer;
+    private int count;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    /**
+     * @param capacity the initial capacity of the buffer in bytes
+     */
+    public JsonWriter(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    public JsonWriter beginObject() {
+        separate();
+        write((byte) '{');
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        write((byte) '}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separate();
+        write((byte) '[');
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        write((byte) ']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of an object, with its colon
+     * @param name the name
+     * @return the writer
+     */
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        write((byte) ':');
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) return nullValue();
+        separate();
+        writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separate();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+        ensure(20);
+        int start = this.count;
+        do {
+            this.buffer[this.count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // The digits were written from the least significant
+        for (int i = start, j = this.count - 1; i < j; i++, j--) {
+            byte digit = this.buffer[i];
+            this.buffer[i] = this.buffer[j];
+            this.buffer[j] = digit;
+        }
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return nullValue();
+        separate();
+        writeAscii(JSONObject.numberToString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separate();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        separate();
+        writeAscii("null");
+        return this;
+    }
+
+    /**
+     * Writes a value already encoded as JSON, es. a member copied from a received payload
+     * @param bytes the bytes containing the value
+     * @param from the index of the first byte of the value
+     * @param to the index after the last byte of the value
+     * @return the writer
+     */
+    public JsonWriter rawValue(byte[] bytes, int from, int to) {
+        separate();
+        ensure(to - from);
+        System.arraycopy(bytes, from, this.buffer, this.count, to - from);
+        this.count += to - from;
+        return this;
+    }
+
+    /**
+     * Writes any value that org.json could hold, including JSONObjects, JSONArrays, maps and collections
+     * @param value the value
+     * @return the writer
+     */
+    public JsonWriter value(Object value) {
+        if (value == null || value == JSONObject.NULL) return nullValue();
+        if (value instanceof String) return value((String) value);
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) return value(((Number) value).longValue());
+        if (value instanceof Double || value instanceof Float) return value(((Number) value).doubleValue());
+        if (value instanceof BigInteger || value instanceof BigDecimal) {
+            separate();
+            writeAscii(JSONObject.numberToString((Number) value));
+            return this;
+        }
+        if (value instanceof Boolean) return value(((Boolean) value).booleanValue());
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            for (String key : object.keySet()) name(key).value(object.opt(key));
+            return endObject();
+        }
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) name(String.valueOf(entry.getKey())).value(entry.getValue());
+            return endObject();
+        }
+        if (value instanceof JSONArray) {
+            beginArray();
+            for (Object element : (JSONArray) value) value(element);
+            return endArray();
+        }
+        if (value instanceof Collection) {
+            beginArray();
+            for (Object element : (Collection<?>) value) value(element);
+            return endArray();
+        }
+        if (value instanceof Enum) return value(((Enum<?>) value).name());
+        return value(value.toString());
+    }
+
+    /**
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.count);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return this.count;
+    }
+
+    private void separate() {
+        if (this.count == 0) return;
+        byte last = this.buffer[this.count - 1];
+        if (last != '{' && last != '[' && last != ':') write((byte) ',');
+    }
+
+    private void writeString(String value) {
+        ensure(value.length() + 2);
+        this.buffer[this.count++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                // Plain ascii, the common case
+                ensure(1);
+                this.buffer[this.count++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                write((byte) '\\');
+                write((byte) c);
+            } else if (c < 0x20) {
+                writeEscape(c);
+            } else if (c < 0x800) {
+                write((byte) (0xC0 | c >> 6));
+                write((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                write((byte) (0xF0 | codePoint >> 18));
+                write((byte) (0x80 | (codePoint >> 12 & 0x3F)));
+                write((byte) (0x80 | (codePoint >> 6 & 0x3F)));
+                write((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate can not be encoded in UTF-8
+                writeEscape(c);
+            } else {
+                write((byte) (0xE0 | c >> 12));
+                write((byte) (0x80 | (c >> 6 & 0x3F)));
+                write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        write((byte) '"');
+    }
+
+    private void writeEscape(char c) {
+        switch (c) {
+            case '\b': writeAscii("\\b"); return;
+            case '\f': writeAscii("\\f"); return;
+            case '\n': writeAscii("\\n"); return;
+            case '\r': writeAscii("\\r"); return;
+            case '\t': writeAscii("\\t"); return;
+            default:
+                writeAscii("\\u");
+                write(HEX[c >> 12 & 0xF]);
+                write(HEX[c >> 8 & 0xF]);
+                write(HEX[c >> 4 & 0xF]);
+                write(HEX[c & 0xF]);
+        }
+    }
+
+    private void writeAscii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) this.buffer[this.count++] = (byte) value.charAt(i);
+    }
+
+    private void write(byte b) {
+        ensure(1);
+        this.buffer[this.count++] = b;
+    }
+
+    private void ensure(int length) {
+        if (this.count + length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.count + length));
+        }
+    }
+}
@@ -6,10 +6,22 @@ package main.java.utils;
 public class MQTTMessage {
     private final String topic;
     private final Message payload;
+    private final int count;
 
     public MQTTMessage (String topic, Message payload) {
+        this(topic, payload, 1);
+    }
+
+    /**
+     * This constructor creates a message standing for several received messages that were conflated into it
+     * @param topic the topic where the message was received
+     * @param payload the payload of the last received message
+     * @param count the number of received messages this message stands for
+     */
+    public MQTTMessage (String topic, Message payload, int count) {
         this.topic = topic;
         this.payload = payload;
+        this.count = count;
     }
 
     public String getTopic() {
@@ -19,4 +31,11 @@ public class MQTTMessage {
     public Message getPayload() {
         return this.payload;
     }
+
+    /**
+     * @return the number of received messages this message stands for, greater than 1 only if queued messages were conflated
+     */
+    public int getCount() {
+        return this.count;
+    }
 }
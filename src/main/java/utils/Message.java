@@ -1,14 +1,35 @@
 package main.java.utils;
 
+import main.java.utils.messages.MessageType;
+import main.java.utils.messages.TrafficEvent;
+import main.java.utils.messages.TypedMessage;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Arrays;
+import java.util.Collection;
+
 /**
  * This class represents a message payload that can be sent through the MQTT broker, containing a type, a timestamp and the actual payload, called msg
+ * Received JSON payloads are read with a streaming reader: the type and the timestamp are decoded at once, the msg only
+ * when it is first accessed, so messages that are filtered out or just forwarded never have their msg decoded.
+ * When published, a message is stamped with its producer and a sequence number increasing for each topic of the producer,
+ * so receivers can detect updates overtaken by newer ones and lost updates.
  */
 public class Message {
     private final String type;
+    private final String id;
+    private final MessageType messageType;
     private final long timestamp;
-    private final JSONObject msg;
+    private final String producer;
+    private final long sequence;
+    private volatile JSONObject msg;
+    private volatile TypedMessage typed;
+    // The received payload and the bounds of the msg in it, while the msg has not been decoded
+    private final byte[] raw;
+    private final int msgFrom;
+    private final int msgTo;
 
     /**
      * This constructor creates a message with a type and a msg (The inner payload of the message)
@@ -16,9 +37,53 @@ public class Message {
      * @param msg the payload of the message
      */
     public Message(String type, JSONObject msg){
+        this(type, System.currentTimeMillis(), msg);
+    }
+
+    /**
+     * This constructor creates a new message with a known timestamp
+     * @param type the type of the message
+     * @param timestamp the timestamp of the message
+     * @param msg the payload of the message
+     */
+    public Message(String type, long timestamp, JSONObject msg){
+        this(type, MessageIds.next(), timestamp, msg);
+    }
+
+    /**
+     * This constructor creates a message received from another device, es. decoded from a binary payload
+     * @param type the type of the message
+     * @param id the id of the message, null if the sender did not set a unique one
+     * @param timestamp the timestamp of the message
+     * @param msg the payload of the message
+     */
+    public Message(String type, String id, long timestamp, JSONObject msg){
+        this(type, id, timestamp, null, 0, msg, null, 0, 0);
+    }
+
+    private Message(String type, String id, long timestamp, String producer, long sequence, JSONObject msg, byte[] raw, int msgFrom, int msgTo){
         this.type = type;
-        this.timestamp = System.currentTimeMillis();
+        this.id = MessageIds.isUnique(id) ? id : null;
+        this.messageType = MessageType.get(type);
+        this.timestamp = timestamp;
+        this.producer = producer;
+        this.sequence = producer == null ? 0 : sequence;
         this.msg = msg;
+        this.raw = raw;
+        this.msgFrom = msgFrom;
+        this.msgTo = msgTo;
+    }
+
+    /**
+     * Creates a copy of the message stamped by a producer, with the same id and payload
+     * @param producer the id of the device publishing the message, with the session of its client
+     * @param sequence the sequence number of the message among those published by the producer on the same topic, from 1
+     * @return the stamped message
+     */
+    public Message withSequence(String producer, long sequence){
+        Message copy = new Message(this.type, this.id, this.timestamp, producer, sequence, this.msg, this.raw, this.msgFrom, this.msgTo);
+        copy.typed = this.typed;
+        return copy;
     }
 
     /**
@@ -26,9 +91,110 @@ public class Message {
      * @param payload the payload of the message
      */
     public Message(JSONObject payload){
-        this.type = payload.getString("type");
-        this.timestamp = payload.getLong("timestamp");
-        this.msg = payload.getJSONObject("msg");
+        this(payload.getString("type"), payload.optString("id", null), payload.getLong("timestamp"),
+                payload.optString("producer", null), payload.optLong("seq"), payload.getJSONObject("msg"), null, 0, 0);
+    }
+
+    /**
+     * Parses a message from the raw payload received from a broker, either JSON or binary encoded
+     * @param payload the bytes of the payload
+     * @return the parsed message
+     */
+    public static Message parse(byte[] payload){
+        if(BinaryCodec.isBinary(payload)) return BinaryCodec.decode(payload);
+        return parseJson(payload);
+    }
+
+    private static Message parseJson(byte[] payload){
+        JsonReader reader = new JsonReader(payload);
+        String type = null;
+        String id = null;
+        String producer = null;
+        long sequence = 0;
+        long timestamp = 0;
+        boolean hasTimestamp = false;
+        int msgFrom = -1;
+        int msgTo = -1;
+
+        reader.beginObject();
+        while(reader.hasNext()){
+            switch (reader.nextName()) {
+                case "type":
+                    type = reader.nextString();
+                    break;
+                case "id":
+                    if(reader.peek() == '"') id = reader.nextString();
+                    else reader.skipValue();
+                    break;
+                case "producer":
+                    if(reader.peek() == '"') producer = reader.nextString();
+                    else reader.skipValue();
+                    break;
+                case "seq":
+                    sequence = reader.nextLong();
+                    break;
+                case "timestamp":
+                    timestamp = reader.nextLong();
+                    hasTimestamp = true;
+                    break;
+                case "msg":
+                    if(reader.peek() != '{') throw new JSONException("JSONObject[\"msg\"] is not a JSONObject");
+                    msgFrom = reader.mark();
+                    reader.skipValue();
+                    msgTo = reader.getPosition();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(type == null) throw new JSONException("JSONObject[\"type\"] not found");
+        if(!hasTimestamp) throw new JSONException("JSONObject[\"timestamp\"] not found");
+        if(msgFrom < 0) throw new JSONException("JSONObject[\"msg\"] not found");
+        return new Message(type, id, timestamp, producer, sequence, null, payload, msgFrom, msgTo);
+    }
+
+    /**
+     * Writes the message as JSON without building a JSON object first.
+     * A msg that was received and never decoded is copied as it is
+     * @return the bytes of the payload
+     */
+    public byte[] toJsonBytes(){
+        JsonWriter writer = new JsonWriter(this.raw != null ? this.msgTo - this.msgFrom + 96 : 256);
+        writer.beginObject();
+        writer.name("type").value(this.type);
+        writer.name("id").value(getId());
+        writer.name("timestamp").value(this.timestamp);
+        if(this.producer != null){
+            writer.name("producer").value(this.producer);
+            writer.name("seq").value(this.sequence);
+        }
+        writer.name("msg");
+        JSONObject msg = this.msg;
+        if(msg == null) writer.rawValue(this.raw, this.msgFrom, this.msgTo);
+        else writer.value(msg);
+        writer.endObject();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes the msg of the message as JSON, copied as it is if it was received and never decoded
+     * @return the bytes of the msg
+     */
+    public byte[] getMsgBytes(){
+        JSONObject msg = this.msg;
+        if(msg == null) return Arrays.copyOfRange(this.raw, this.msgFrom, this.msgTo);
+        return new JsonWriter().value(msg).toByteArray();
+    }
+
+    /**
+     * Encodes the message in the given wire format
+     * @param format the wire format
+     * @return the bytes of the payload
+     */
+    public byte[] encode(WireFormat format){
+        return format.encode(this);
     }
 
     /**
@@ -38,9 +204,13 @@ public class Message {
     public JSONObject toJson() {
         JSONObject payload = new JSONObject();
         payload.put("type", this.type);
-        payload.put("id", "MSG_" + this.timestamp);
+        payload.put("id", getId());
         payload.put("timestamp", this.timestamp);
-        payload.put("msg", this.msg);
+        if(this.producer != null){
+            payload.put("producer", this.producer);
+            payload.put("seq", this.sequence);
+        }
+        payload.put("msg", getMsg());
         return payload;
     }
 
@@ -52,8 +222,82 @@ public class Message {
         return this.type;
     }
 
+    /**
+     * This method returns the id of the message, unique for the messages created by this version.
+     * Messages received from older devices, whose ids are not unique, get the legacy id 'MSG_' followed by the timestamp
+     * @return the id of the message
+     */
+    public String getId(){
+        return this.id != null ? this.id : "MSG_" + this.timestamp;
+    }
+
+    /**
+     * @return the id of the device that published the message followed by the session of its client, es. 'V1#k3x9q1z-4',
+     * null if it was not stamped, es. a timer
+     */
+    public String getProducer(){
+        return this.producer;
+    }
+
+    /**
+     * @return the sequence number of the message among those published by its producer on the same topic, 0 if not stamped
+     */
+    public long getSequence(){
+        return this.sequence;
+    }
+
+    /**
+     * @return true if the id of the message is unique, so it can be used to detect duplicates
+     */
+    public boolean hasUniqueId(){
+        return this.id != null;
+    }
+
+    /**
+     * This method returns the type of the message, resolved once when the message was created
+     * @return the type of the message, UNKNOWN if not known by this version
+     */
+    public MessageType getMessageType(){
+        return this.messageType;
+    }
+
+    /**
+     * This method returns the typed form of the inner payload, decoded on the first access and then shared by all the devices receiving the message
+     * @return the typed payload, es. a TrafficEvent for a TRAFFIC message
+     * @throws ClassCastException if the payload is not of the type expected by the caller
+     * @throws IllegalStateException if the type of the message has no typed payload
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends TypedMessage> T getTyped(){
+        TypedMessage typed = this.typed;
+        if(typed == null){
+            if(!this.messageType.isTyped()) throw new IllegalStateException("Messages of type " + this.type + " have no typed payload");
+            // Decoding twice in a race is harmless, the payloads are immutable and equal
+            typed = this.messageType.decode(getMsg());
+            this.typed = typed;
+        }
+        return (T) typed;
+    }
+
+    /**
+     * This method returns the timestamp of the message
+     * @return the timestamp of the message in milliseconds
+     */
+    public long getTimestamp(){
+        return this.timestamp;
+    }
+
+    /**
+     * This method returns the inner payload of the message, decoding it on the first access if the message was received
+     * @return the msg
+     */
     public JSONObject getMsg(){
-        return this.msg;
+        JSONObject msg = this.msg;
+        if(msg != null) return msg;
+        synchronized (this) {
+            if(this.msg == null) this.msg = new JsonReader(this.raw, this.msgFrom, this.msgTo).nextObject();
+            return this.msg;
+        }
     }
 
     /**
@@ -69,6 +313,30 @@ public class Message {
         return new Message("SIMULATOR_STEP", msg);
     }
 
+    /**
+     * Creates a timer message, that a device schedules to be delivered to itself
+     * @param name the name of the timer, used by the device to tell its timers apart
+     * @return the message
+     */
+    public static Message createTimer(String name){
+        JSONObject msg = new JSONObject();
+        msg.put("name", name);
+
+        return new Message("TIMER", msg);
+    }
+
+    /**
+     * Creates a telemetry message, uploading to AWS the status of several devices
+     * @param statuses the status of every device, with its topic and the fields changed since its previous version
+     * @return the message
+     */
+    public static Message createTelemetry(JSONArray statuses){
+        JSONObject msg = new JSONObject();
+        msg.put("statuses", statuses);
+
+        return new Message("TELEMETRY", msg);
+    }
+
     /**
      * Creates a new road Status message
      * @param road The name of the road, es. 'R1'
@@ -142,6 +410,53 @@ public class Message {
         return new Message("TRAFFIC", msg);
     }
 
+    /**
+     * Creates a new traffic message from an event, with the speed and the simulation time if it reports them
+     * @param event the traffic event
+     * @return the message containing the formatted information
+     */
+    public static Message createTraffic(TrafficEvent event) {
+        JSONObject msg = new JSONObject();
+        msg.put("vehicle-id", event.vehicleId());
+        if(event.role() != null) msg.put("vehicle-role", event.role().name());
+        msg.put("action", event.action().name());
+        msg.put("road-segment", event.segment());
+        msg.put("position", event.position());
+        if(event.hasMotion()){
+            msg.put("speed", event.speed());
+            msg.put("sim-time", event.simTime());
+        }
+
+        return new Message("TRAFFIC", msg);
+    }
+
+    /**
+     * Creates a new traffic batch message, carrying the traffic of a whole road segment in a step
+     * @param roadSegment the road segment
+     * @param events the last traffic event of every vehicle in the segment
+     * @return the message containing the formatted information
+     */
+    public static Message createTrafficBatch(String roadSegment, Collection<TrafficEvent> events) {
+        JSONArray vehicles = new JSONArray();
+        for(TrafficEvent event : events){
+            JSONObject vehicle = new JSONObject();
+            vehicle.put("vehicle-id", event.vehicleId());
+            if(event.role() != null) vehicle.put("vehicle-role", event.role().name());
+            vehicle.put("action", event.action().name());
+            vehicle.put("position", event.position());
+            if(event.hasMotion()){
+                vehicle.put("speed", event.speed());
+                vehicle.put("sim-time", event.simTime());
+            }
+            vehicles.put(vehicle);
+        }
+        JSONObject msg = new JSONObject();
+        msg.put("road-segment", roadSegment);
+        msg.put("vehicles", vehicles);
+
+        return new Message("TRAFFIC_BATCH", msg);
+    }
+
     /**
      * Creates a new accident message
      * @param accidentId the id of the accident, should match in both OPEN and CLOSE event
@@ -0,0 +1,46 @@
+package main.java.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the ids of the messages created by the process, unique across processes.
+ * An id is made of the node id of the process and a counter, both in base 36, es. 'k3x9q1z-1f'.
+ * The node id is random unless set with the system property "smartcity.node"
+ */
+public class MessageIds {
+    private static final String node = node(System.getProperty("smartcity.node"));
+    private static final AtomicLong counter = new AtomicLong();
+
+    private MessageIds() {}
+
+    /**
+     * @return a new message id
+     */
+    public static String next() {
+        return node + "-" + Long.toString(counter.incrementAndGet(), 36);
+    }
+
+    /**
+     * @return the node id of the process
+     */
+    public static String getNode() {
+        return node;
+    }
+
+    /**
+     * Tells the ids generated by this class apart from the legacy ids, 'MSG_' followed by the timestamp,
+     * which collide for the messages created in the same millisecond and can not be used to detect duplicates
+     * @param id the id of a received message
+     * @return true if the id is unique
+     */
+    public static boolean isUnique(String id) {
+        return id != null && !id.isEmpty() && !id.startsWith("MSG_");
+    }
+
+    private static String node(String configured) {
+        if (configured != null && !configured.isEmpty()) return configured;
+        // 36^6 is about 2^31, so a random node id has 6 or 7 characters
+        return Long.toString(ThreadLocalRandom.current().nextLong(1L << 31, 1L << 36), 36);
+    }
+}
@@ -6,6 +6,29 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 
 public class Simulator {
     public static void main(String[] args) throws MqttException {
+        run(GlobalVars.BROKER_ADDRESS, GlobalVars.STEP_MS);
+    }
+
+    /**
+     * Starts publishing the step messages on a daemon thread, so a whole scenario can run in the same process
+     * @param brokerAddress the address of the broker
+     * @param periodMs the time between steps in milliseconds
+     * @return the thread publishing the steps
+     */
+    public static Thread startInBackground(String brokerAddress, long periodMs) {
+        Thread thread = new Thread(() -> {
+            try {
+                run(brokerAddress, periodMs);
+            } catch (MqttException e) {
+                Logger.error("Simulator", "Error publishing steps: " + e.getMessage());
+            }
+        }, "Simulator");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void run(String brokerAddress, long periodMs) throws MqttException {
         MQTTClient client = new MQTTClient(new Device("Simulator") {
             @Override
             public void init() throws MqttException {
@@ -16,17 +39,17 @@ public class Simulator {
             protected void handleMessage(MQTTMessage message) {
 
             }
-        }, GlobalVars.BROKER_ADDRESS);
+        }, brokerAddress);
 
         int count = 0;
         while(true){
-            client.publish(GlobalVars.BASE_TOPIC + "/step", Message.createStepMessage(count).toJson());
+            client.publish(GlobalVars.BASE_TOPIC + "/step", Message.createStepMessage(count));
             Logger.info("Simulator", "Sent step message: " + count);
             count++;
             try {
-                Thread.sleep(3000);
+                Thread.sleep(periodMs);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                return;
             }
         }
     }
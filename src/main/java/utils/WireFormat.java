@@ -0,0 +1,53 @@
+package main.java.utils;
+
+/**
+ * This enum represents how messages are encoded when they are published.
+ * Receivers always accept both formats, telling them apart by the first byte of the payload, so devices configured
+ * with different formats can share a broker. JSON is the format understood by the external broker and services.
+ * It is chosen with the system property "smartcity.wire"
+ */
+public enum WireFormat {
+    /**
+     * Messages are published as JSON documents, the default
+     */
+    JSON,
+    /**
+     * Messages are published with the compact binary codec, falling back to JSON for the messages it cannot encode
+     */
+    BINARY;
+
+    private static final WireFormat configured = get(System.getProperty("smartcity.wire"));
+
+    /**
+     * Encodes a message
+     * @param message the message
+     * @return the bytes of the payload
+     */
+    public byte[] encode(Message message) {
+        if (this == BINARY) {
+            byte[] encoded = BinaryCodec.encode(message);
+            if (encoded != null) return encoded;
+        }
+        return message.toJsonBytes();
+    }
+
+    /**
+     * @return the format set with the system property, JSON if not set
+     */
+    public static WireFormat getConfigured() {
+        return configured;
+    }
+
+    /**
+     * Parses the wire format from its name, case insensitive
+     * @param name the name of the format, if null or unknown the JSON format is returned
+     * @return the wire format
+     */
+    public static WireFormat get(String name) {
+        if (name == null || name.isEmpty()) return JSON;
+        for (WireFormat format : WireFormat.values()) {
+            if (format.name().equalsIgnoreCase(name)) return format;
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,31 @@
+package main.java.utils.messages;
+
+import org.json.JSONObject;
+
+/**
+ * An accident being opened or closed
+ * @param event whether the accident occurred or was solved, UNKNOWN if not known by this version
+ * @param id the id of the accident, the same for both events
+ * @param vehicle the vehicle involved in the accident
+ * @param segment the road segment where the accident is
+ * @param position the position of the accident in the segment in meters
+ */
+public record AccidentEvent(Event event, String id, String vehicle, String segment, int position) implements TypedMessage {
+    public enum Event {
+        OPEN, CLOSE, UNKNOWN
+    }
+
+    public static AccidentEvent from(JSONObject msg) {
+        Event event = switch (msg.optString("event")) {
+            case "OPEN" -> Event.OPEN;
+            case "CLOSE" -> Event.CLOSE;
+            default -> Event.UNKNOWN;
+        };
+        return new AccidentEvent(event, msg.getString("id"), msg.optString("vehicle", null), msg.getString("road-segment"), msg.getInt("position"));
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.ACCIDENT;
+    }
+}
@@ -0,0 +1,28 @@
+package main.java.utils.messages;
+
+import org.json.JSONObject;
+
+/**
+ * A command sent to a device
+ * @param name the command, UNKNOWN if not known by this version
+ * @param value the argument of the command, es. the speed to be set, 0 if none
+ */
+public record Command(Name name, int value) implements TypedMessage {
+    public enum Name {
+        ACCIDENT, SET_SPEED, UNKNOWN
+    }
+
+    public static Command from(JSONObject msg) {
+        Name name = switch (msg.optString("command")) {
+            case "ACCIDENT" -> Name.ACCIDENT;
+            case "SET_SPEED" -> Name.SET_SPEED;
+            default -> Name.UNKNOWN;
+        };
+        return new Command(name, msg.optInt("value"));
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.COMMAND;
+    }
+}
@@ -0,0 +1,92 @@
+package main.java.utils.messages;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional flyweight pool of typed payloads, enabled with the system property "smartcity.messages.pool".
+ * Typed payloads are immutable, so equal ones can be shared instead of kept as copies: road statuses, signals and
+ * steps are published again and again with the same content, and with the pool all the messages carrying them
+ * point to a single instance. Only the types marked as pooled in MessageType are pooled. The pool is bounded by "smartcity.messages.poolSize" (4096), when full it is cleared
+ */
+public class MessagePool {
+    private static volatile boolean enabled = Boolean.getBoolean("smartcity.messages.pool");
+    private static final MessagePool shared = new MessagePool(Integer.getInteger("smartcity.messages.poolSize", 4096));
+
+    private final int capacity;
+    private final ConcurrentHashMap<TypedMessage, TypedMessage> instances = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MessagePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Enables pooling for all the messages decoded from now on
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Disables pooling, the pooled instances already handed out stay valid
+     */
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * @return true if pooling is enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the pool shared by the whole process
+     */
+    public static MessagePool getShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the pooled instance equal to the given payload, pooling it if there is none
+     * @param payload the decoded payload
+     * @return the pooled instance
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends TypedMessage> T intern(T payload) {
+        TypedMessage pooled = this.instances.get(payload);
+        if (pooled != null) {
+            this.hits.incrementAndGet();
+            return (T) pooled;
+        }
+        this.misses.incrementAndGet();
+        // A full pool is emptied rather than evicting entry by entry, so there is no bookkeeping on lookups
+        if (this.instances.size() >= this.capacity) this.instances.clear();
+        pooled = this.instances.putIfAbsent(payload, payload);
+        return pooled == null ? payload : (T) pooled;
+    }
+
+    /**
+     * @return the number of pooled instances
+     */
+    public int size() {
+        return this.instances.size();
+    }
+
+    /**
+     * @return the number of payloads replaced by a pooled instance
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of payloads that had no pooled instance
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+}
@@ -0,0 +1,68 @@
+package main.java.utils.messages;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * This enum represents the types of the messages exchanged by the devices, each with the decoder of its typed payload.
+ * The type is resolved once when a message is received, so handlers can switch on it instead of comparing strings
+ */
+public enum MessageType {
+    // The step number changes at every tick, so a pooled step would never be found again
+    SIMULATOR_STEP(StepTick::from, false),
+    TIMER(null, false),
+    ROAD_STATUS(RoadStatus::from, true),
+    TRAFFIC_SIGNAL(TrafficSignal::from, true),
+    TRAFFIC(TrafficEvent::from, false),
+    TRAFFIC_BATCH(TrafficBatch::from, false),
+    ACCIDENT(AccidentEvent::from, false),
+    COMMAND(Command::from, false),
+    /**
+     * Any type not known by this version, es. a message from a newer device
+     */
+    UNKNOWN(null, false);
+
+    private static final Map<String, MessageType> byName = new HashMap<>();
+
+    static {
+        for (MessageType type : values()) byName.put(type.name(), type);
+    }
+
+    private final Function<JSONObject, ? extends TypedMessage> decoder;
+    private final boolean pooled;
+
+    MessageType(Function<JSONObject, ? extends TypedMessage> decoder, boolean pooled) {
+        this.decoder = decoder;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Decodes the inner payload of a message of this type, taking it from the shared pool if pooling is enabled
+     * @param msg the inner payload
+     * @return the typed payload, null if the type has no typed payload
+     */
+    public TypedMessage decode(JSONObject msg) {
+        if (this.decoder == null) return null;
+        TypedMessage payload = this.decoder.apply(msg);
+        return this.pooled && MessagePool.isEnabled() ? MessagePool.getShared().intern(payload) : payload;
+    }
+
+    /**
+     * @return true if the messages of this type have a typed payload
+     */
+    public boolean isTyped() {
+        return this.decoder != null;
+    }
+
+    /**
+     * @param name the type of a message as written in its envelope, es. 'TRAFFIC'
+     * @return the message type, UNKNOWN if the name is null or not known
+     */
+    public static MessageType get(String name) {
+        if (name == null) return UNKNOWN;
+        return byName.getOrDefault(name, UNKNOWN);
+    }
+}
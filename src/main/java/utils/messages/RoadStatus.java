@@ -0,0 +1,43 @@
+package main.java.utils.messages;
+
+import main.java.device.vehicle.navigation.types.ERoadStatus;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The status of a road segment
+ * @param segment the road segment, es. 'R5s1'
+ * @param road the road of the segment, es. 'R5'
+ * @param startKp the kilometric point where the segment starts
+ * @param endKp the kilometric point where the segment ends
+ * @param maxSpeed the maximum speed allowed in the segment
+ * @param currentMaxSpeed the maximum speed currently allowed in the segment
+ * @param capacity the maximum number of vehicles of the segment
+ * @param numVehicles the number of vehicles in the segment
+ * @param density the density of the traffic in the segment
+ * @param status the status of the traffic, null if not known
+ */
+public record RoadStatus(String segment, String road, int startKp, int endKp, int maxSpeed, int currentMaxSpeed,
+                         int capacity, int numVehicles, int density, ERoadStatus status) implements TypedMessage {
+    private static final Map<String, ERoadStatus> statuses = new HashMap<>();
+
+    static {
+        for (ERoadStatus status : ERoadStatus.values()) statuses.put(status.name(), status);
+    }
+
+    public static RoadStatus from(JSONObject msg) {
+        String status = msg.getString("status");
+        return new RoadStatus(msg.getString("road-segment"), msg.optString("road", null),
+                msg.optInt("start-kp"), msg.optInt("end-kp"), msg.optInt("max-speed"),
+                msg.optInt("current-max-speed", msg.optInt("max-speed")), msg.optInt("capacity"),
+                msg.optInt("num-vehicles"), msg.optInt("density"),
+                statuses.containsKey(status) ? statuses.get(status) : ERoadStatus.get(status));
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.ROAD_STATUS;
+    }
+}
@@ -0,0 +1,19 @@
+package main.java.utils.messages;
+
+import org.json.JSONObject;
+
+/**
+ * A step of the simulator
+ * @param simulator the name of the simulator, es. 'PTPaterna'
+ * @param step the step counter of the simulator
+ */
+public record StepTick(String simulator, int step) implements TypedMessage {
+    public static StepTick from(JSONObject msg) {
+        return new StepTick(msg.optString("simulator", null), msg.getInt("step"));
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.SIMULATOR_STEP;
+    }
+}
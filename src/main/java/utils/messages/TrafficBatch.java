@@ -0,0 +1,28 @@
+package main.java.utils.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The traffic of a road segment in a simulation step: the last event of every vehicle of a process in the segment
+ * @param segment the road segment, es. 'R5s1'
+ * @param events the events of the vehicles, one per vehicle
+ */
+public record TrafficBatch(String segment, List<TrafficEvent> events) implements TypedMessage {
+    public static TrafficBatch from(JSONObject msg) {
+        String segment = msg.getString("road-segment");
+        JSONArray vehicles = msg.getJSONArray("vehicles");
+        List<TrafficEvent> events = new ArrayList<>(vehicles.length());
+        for (int i = 0; i < vehicles.length(); i++) events.add(TrafficEvent.from(vehicles.getJSONObject(i), segment));
+        return new TrafficBatch(segment, Collections.unmodifiableList(events));
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.TRAFFIC_BATCH;
+    }
+}
@@ -0,0 +1,74 @@
+package main.java.utils.messages;
+
+import main.java.device.vehicle.Vehicle.VehicleRole;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A vehicle entering, moving along or leaving a road segment
+ * @param vehicleId the id of the vehicle (its plate)
+ * @param role the role of the vehicle, null if not known
+ * @param action whether the vehicle is in the segment or leaving it, UNKNOWN if not known by this version
+ * @param segment the road segment, es. 'R5s1'
+ * @param position the position of the vehicle in the segment in meters
+ * @param speed the speed of the vehicle in km/h, -1 if not reported
+ * @param simTime the simulation time of the position in milliseconds, -1 if not reported
+ */
+public record TrafficEvent(String vehicleId, VehicleRole role, Action action, String segment, int position, int speed, long simTime) implements TypedMessage {
+    private static final Map<String, VehicleRole> roles = new HashMap<>();
+
+    static {
+        for (VehicleRole role : VehicleRole.values()) roles.put(role.name(), role);
+    }
+
+    public enum Action {
+        VEHICLE_IN, VEHICLE_OUT, UNKNOWN
+    }
+
+    /**
+     * Creates an event without speed nor simulation time, that can not be extrapolated
+     */
+    public TrafficEvent(String vehicleId, VehicleRole role, Action action, String segment, int position) {
+        this(vehicleId, role, action, segment, position, -1, -1);
+    }
+
+    public static TrafficEvent from(JSONObject msg) {
+        return from(msg, msg.getString("road-segment"));
+    }
+
+    /**
+     * Decodes an event whose segment is not in the payload, es. an entry of a TrafficBatch
+     * @param msg the payload of the event
+     * @param segment the road segment of the event
+     * @return the event
+     */
+    public static TrafficEvent from(JSONObject msg, String segment) {
+        Action action = switch (msg.optString("action")) {
+            case "VEHICLE_IN" -> Action.VEHICLE_IN;
+            case "VEHICLE_OUT" -> Action.VEHICLE_OUT;
+            default -> Action.UNKNOWN;
+        };
+        return new TrafficEvent(msg.getString("vehicle-id"), roles.get(msg.optString("vehicle-role")), action, segment, msg.getInt("position"), msg.optInt("speed", -1), msg.optLong("sim-time", -1));
+    }
+
+    /**
+     * @return true if the event reports the speed and the simulation time, so the position can be extrapolated
+     */
+    public boolean hasMotion() {
+        return this.speed >= 0 && this.simTime >= 0;
+    }
+
+    /**
+     * @return true if the vehicle has the right to a reserved circulation, es. an ambulance
+     */
+    public boolean isSpecialVehicle() {
+        return this.role == VehicleRole.Ambulance || this.role == VehicleRole.Police;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.TRAFFIC;
+    }
+}
@@ -0,0 +1,47 @@
+package main.java.utils.messages;
+
+import org.json.JSONObject;
+
+/**
+ * A traffic signal, its value is a speed for speed limits and a light pattern, es. 'HLL', for traffic lights
+ * @param id the id of the signal
+ * @param signalType the type of the signal, null if not known
+ * @param segment the road segment where the signal is
+ * @param startingPosition the position where the signal starts to apply in meters
+ * @param endingPosition the position where the signal stops to apply in meters
+ * @param value the value of the signal, an Integer or a String
+ */
+public record TrafficSignal(String id, SignalType signalType, String segment, int startingPosition, int endingPosition, Object value) implements TypedMessage {
+    public enum SignalType {
+        TRAFFIC_LIGHT, SPEED_LIMIT
+    }
+
+    public static TrafficSignal from(JSONObject msg) {
+        SignalType signalType = switch (msg.optString("signal-type")) {
+            case "TRAFFIC_LIGHT" -> SignalType.TRAFFIC_LIGHT;
+            case "SPEED_LIMIT" -> SignalType.SPEED_LIMIT;
+            default -> null;
+        };
+        return new TrafficSignal(msg.optString("id", null), signalType, msg.optString("road-segment", null),
+                msg.getInt("starting-position"), msg.optInt("ending-position"), msg.opt("value"));
+    }
+
+    /**
+     * @return the value as a number, es. the speed of a speed limit
+     */
+    public int intValue() {
+        return this.value instanceof Number ? ((Number) this.value).intValue() : Integer.parseInt(String.valueOf(this.value));
+    }
+
+    /**
+     * @return the value as a string, es. the pattern of a traffic light
+     */
+    public String stringValue() {
+        return String.valueOf(this.value);
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.TRAFFIC_SIGNAL;
+    }
+}
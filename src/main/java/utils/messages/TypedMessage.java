@@ -0,0 +1,12 @@
+package main.java.utils.messages;
+
+/**
+ * This interface represents the immutable, typed form of the inner payload of a message.
+ * Being immutable, the same instance can be shared by all the devices receiving the message
+ */
+public interface TypedMessage {
+    /**
+     * @return the type of the message the payload belongs to
+     */
+    MessageType getMessageType();
+}